@@ -0,0 +1,156 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.restlet.ext.jackson.JacksonRepresentation;
+import org.restlet.representation.Representation;
+
+/**
+ * Creates, polls and cleans up Bulk API 2.0 jobs (query and ingest).
+ */
+class BulkJobMonitor {
+
+    private static final Log log = Log.getLog(BulkJobMonitor.class);
+
+    private final SalesforceUserOp op;
+
+    private final SalesforceConfiguration configuration;
+
+    BulkJobMonitor(SalesforceUserOp op, SalesforceConfiguration configuration) {
+        this.op = op;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Creates a job.
+     *
+     * @param servicePath
+     *            the jobs resource (jobs/query or jobs/ingest)
+     * @param job
+     *            the job definition
+     * @return the path of the new job
+     */
+    public String createJob(String servicePath, Map<String, Object> job) {
+        final String[] jobId = new String[1];
+        op.doPost(servicePath,
+                new JacksonRepresentation<Map<String, Object>>(job),
+                new SalesforceUserOp.Callback() {
+                    public void call(Representation body) {
+                        jobId[0] = (String) new JacksonRepresentation<Map>(
+                                body, Map.class).getObject().get("id");
+                    }
+                });
+
+        if (jobId[0] == null) {
+            throw new ConnectorException("Bulk job was not created");
+        }
+        log.info("Bulk job {0} created", jobId[0]);
+        return servicePath + "/" + jobId[0];
+    }
+
+    /**
+     * Moves the job to the given state (UploadComplete, Aborted).
+     */
+    public void setState(String jobPath, String state) {
+        Map<String, String> body = new HashMap<String, String>();
+        body.put("state", state);
+        op.doPost(jobPath + "?_HttpMethod=PATCH",
+                new JacksonRepresentation<Map<String, String>>(body),
+                new SalesforceUserOp.NothingCallback());
+    }
+
+    /**
+     * Polls the job state, starting at bulkPollInterval and doubling the
+     * interval up to bulkPollMaxInterval, until the job is complete or
+     * bulkQueryTimeout has elapsed. The job is aborted when it does not
+     * complete in time.
+     *
+     * @return the last job information
+     */
+    public Map waitForCompletion(String jobPath) {
+        long deadline = System.currentTimeMillis()
+                + configuration.getBulkQueryTimeout();
+        long interval = configuration.getBulkPollInterval();
+
+        while (true) {
+            final Map[] info = new Map[1];
+            op.doGet(jobPath, new SalesforceUserOp.Callback() {
+                public void call(Representation body) {
+                    info[0] = new JacksonRepresentation<Map>(body, Map.class)
+                            .getObject();
+                }
+            }, null);
+
+            String state = info[0] != null ? (String) info[0].get("state")
+                    : null;
+            log.ok("Bulk job {0} state: {1}", jobPath, state);
+
+            if ("JobComplete".equals(state)) {
+                return info[0];
+            } else if ("Failed".equals(state) || "Aborted".equals(state)) {
+                throw new ConnectorException("Bulk job " + jobPath + " "
+                        + state + ": " + info[0].get("errorMessage"));
+            }
+
+            if (System.currentTimeMillis() + interval > deadline) {
+                abort(jobPath);
+                throw new OperationTimeoutException("Bulk job " + jobPath
+                        + " did not complete in time");
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort(jobPath);
+                throw new ConnectorException(
+                        "Interrupted while waiting for bulk job " + jobPath, e);
+            }
+            interval = Math.min(interval * 2,
+                    configuration.getBulkPollMaxInterval());
+        }
+    }
+
+    public void abort(String jobPath) {
+        try {
+            setState(jobPath, "Aborted");
+        } catch (RuntimeException e) {
+            log.warn(e, "Failed to abort bulk job {0}", jobPath);
+        }
+    }
+
+    public void delete(String jobPath) {
+        try {
+            op.doDelete(jobPath, new SalesforceUserOp.NothingCallback(), null);
+        } catch (RuntimeException e) {
+            log.warn(e, "Failed to delete bulk job {0}", jobPath);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * When an org user was last seen reachable, shared by every connection of
+ * the process.
+ * <p>
+ * Any successful request marks the org alive. A liveness check within the
+ * freshness window reuses that outcome; otherwise one connection probes
+ * while the others checking at the same time wait for its result. The
+ * health is dropped when the last connection using it is disposed.
+ * </p>
+ */
+class ConnectionHealth {
+
+    private static final Map<String, ConnectionHealth> instances = new HashMap<String, ConnectionHealth>();
+
+    private final String key;
+
+    private volatile long lastAlive;
+
+    private int references;
+
+    private ConnectionHealth(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the health of the org user and credentials of the
+     * configuration, creating it if needed. Each call must be paired with
+     * {@link #release(ConnectionHealth)}.
+     */
+    static synchronized ConnectionHealth acquire(
+            SalesforceConfiguration configuration) {
+        String key = configuration.getCredentialsKey();
+        ConnectionHealth health = instances.get(key);
+        if (health == null) {
+            health = new ConnectionHealth(key);
+            instances.put(key, health);
+        }
+        health.references++;
+        return health;
+    }
+
+    /**
+     * Releases a health returned by
+     * {@link #acquire(SalesforceConfiguration)} and drops it once no
+     * connection uses it.
+     */
+    static synchronized void release(ConnectionHealth health) {
+        if (--health.references == 0 && instances.get(health.key) == health) {
+            instances.remove(health.key);
+        }
+    }
+
+    /**
+     * Records a successful request.
+     */
+    public void markAlive() {
+        lastAlive = System.currentTimeMillis();
+    }
+
+    /**
+     * Probes the org with the connection, unless a request has succeeded
+     * within the freshness window.
+     * 
+     * @param freshness
+     *            how long in milliseconds a success is trusted, 0 to always
+     *            probe
+     */
+    public void check(SalesforceConnection connection, long freshness) {
+        if (isFresh(freshness)) {
+            return;
+        }
+        synchronized (this) {
+            // A probe may have completed while waiting
+            if (isFresh(freshness)) {
+                return;
+            }
+            connection.probe();
+            markAlive();
+        }
+    }
+
+    private boolean isFresh(long freshness) {
+        return freshness > 0
+                && System.currentTimeMillis() - lastAlive < freshness;
+    }
+}
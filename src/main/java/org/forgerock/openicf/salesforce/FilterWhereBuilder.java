@@ -22,7 +22,18 @@
  */
 package org.forgerock.openicf.salesforce;
 
+import java.math.BigDecimal;
 import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 
 /**
  * The Filter Where builder is component intended to be used within subclass of
@@ -43,7 +54,13 @@ import java.sql.Types;
  */
 public class FilterWhereBuilder {
 
+    private static final Pattern DATE_TIME_LITERAL = Pattern
+            .compile("[0-9]{1,4}[0-9T:.+\\-Z]*");
+
     private boolean in;
+    private String inField;
+    private Set<String> inValues;
+    private boolean singleResult;
     private StringBuilder where = new StringBuilder();
 
     /**
@@ -58,7 +75,18 @@ public class FilterWhereBuilder {
      */
     public void join(final String operator, final FilterWhereBuilder l,
             final FilterWhereBuilder r) {
+        if ("OR".equals(operator) && l.getInField() != null
+                && l.getInField().equals(r.getInField())) {
+            // Collapse a disjunction of equalities on one field into IN
+            Set<String> literals = new LinkedHashSet<String>(l.inValues);
+            literals.addAll(r.inValues);
+            setIn(l.getInField(), literals);
+            return;
+        }
         this.in = true;
+        // An AND with a unique key equality still matches one record at most
+        this.singleResult = "AND".equals(operator)
+                && (l.isSingleResult() || r.isSingleResult());
         if (l.isIn())
             where.append("( ");
         where.append(l.getWhere());
@@ -97,22 +125,168 @@ public class FilterWhereBuilder {
     public void addBind(final SOQLParam param, final String operator) {
         if (param == null)
             throw new IllegalArgumentException("null.param.not.suported");
+        String literal = toLiteral(param);
+        // Only a clause made of the equality alone, not negated, is an IN
+        boolean alone = where.length() == 0;
         where.append(param.getName());
         where.append(" ").append(operator).append(" ");
+        where.append(literal);
 
+        if (alone && "=".equals(operator)) {
+            inField = param.getName();
+            inValues = new LinkedHashSet<String>();
+            inValues.add(literal);
+        }
+    }
+
+    private String toLiteral(final SOQLParam param) {
         switch (param.getsoqlType()) {
         case Types.VARCHAR:
-            where.append("'");
-            where.append(param.getValue());
-            where.append("'");
-            break;
+            return "'" + escape(String.valueOf(param.getValue())) + "'";
+
+        case Types.BOOLEAN:
+            String value = String.valueOf(param.getValue());
+            if (!"true".equalsIgnoreCase(value)
+                    && !"false".equalsIgnoreCase(value)) {
+                throw new InvalidAttributeValueException(
+                        "Invalid boolean value of " + param.getName() + ": "
+                                + value);
+            }
+            return value.toLowerCase();
+
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.DOUBLE:
+            return toNumber(param);
+
+        case Types.DATE:
+            return toDateTime(param, "yyyy-MM-dd");
+
+        case Types.TIMESTAMP:
+            return toDateTime(param, "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+        case Types.TIME:
+            return toDateTime(param, "HH:mm:ss.SSS'Z'");
 
         default:
-            where.append(param.getValue());
-            break;
+            return String.valueOf(param.getValue());
+        }
+    }
+
+    /**
+     * The field of a clause which is an equality or a disjunction of
+     * equalities on a single field, rendered as an IN clause.
+     * 
+     * @return the field, or null for any other clause
+     */
+    public String getInField() {
+        return inField;
+    }
+
+    /**
+     * @return the distinct literals compared to {@link #getInField()}, or null
+     */
+    public List<String> getInValues() {
+        return inValues != null ? new ArrayList<String>(inValues) : null;
+    }
+
+    /**
+     * Returns a clause matching the same field as this IN clause with a
+     * subset of its values, to split a clause too long for one query.
+     */
+    public FilterWhereBuilder subset(List<String> literals) {
+        if (inField == null) {
+            throw new IllegalStateException("Not an IN clause: " + where);
+        }
+        FilterWhereBuilder subset = new FilterWhereBuilder();
+        subset.setIn(inField, new LinkedHashSet<String>(literals));
+        return subset;
+    }
+
+    private void setIn(String field, Set<String> literals) {
+        inField = field;
+        inValues = literals;
+        in = false;
+        singleResult = false;
+        where.setLength(0);
+        if (literals.size() == 1) {
+            where.append(field).append(" = ").append(literals.iterator().next());
+            return;
+        }
+        where.append(field).append(" IN (");
+        for (String literal : literals) {
+            where.append(literal).append(",");
+        }
+        if (!literals.isEmpty()) {
+            where.setLength(where.length() - 1);
+        }
+        where.append(")");
+    }
+
+    /**
+     * Escapes a value for a quoted SOQL string literal.
+     */
+    static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '\\':
+            case '\'':
+            case '"':
+                escaped.append('\\').append(c);
+                break;
+            case '\n':
+                escaped.append("\\n");
+                break;
+            case '\r':
+                escaped.append("\\r");
+                break;
+            case '\t':
+                escaped.append("\\t");
+                break;
+            default:
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private String toNumber(SOQLParam param) {
+        Object value = param.getValue();
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        try {
+            return new BigDecimal(String.valueOf(value).trim()).toPlainString();
+        } catch (NumberFormatException e) {
+            throw new InvalidAttributeValueException("Invalid number value of "
+                    + param.getName() + ": " + value);
         }
     }
 
+    /**
+     * Date, datetime and time literals are not quoted: a Date or a number of
+     * milliseconds is formatted in UTC, a String is checked to only contain
+     * date and time characters.
+     */
+    private String toDateTime(SOQLParam param, String pattern) {
+        Object value = param.getValue();
+        if (value instanceof Date || value instanceof Number) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format.format(value instanceof Date ? value : new Date(
+                    ((Number) value).longValue()));
+        }
+        String literal = String.valueOf(value).trim();
+        if (!DATE_TIME_LITERAL.matcher(literal).matches()) {
+            throw new InvalidAttributeValueException(
+                    "Invalid date/time value of " + param.getName() + ": "
+                            + literal);
+        }
+        return literal;
+    }
+
     /**
      * Add null value The names are quoted using the {@link #columnQuote} value
      * 
@@ -140,6 +314,24 @@ public class FilterWhereBuilder {
         return in;
     }
 
+    /**
+     * The clause can match one record at most, because it is an equality on
+     * a unique key (Id or Username).
+     * 
+     * @return boolean a singleResult
+     */
+    public boolean isSingleResult() {
+        return singleResult;
+    }
+
+    /**
+     * @param singleResult
+     *            the clause matches one record at most
+     */
+    public void setSingleResult(boolean singleResult) {
+        this.singleResult = singleResult;
+    }
+
     /**
      * @param columnQuote
      *            The required quote type
@@ -0,0 +1,151 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ * Pages a query with successive queries instead of a server side cursor:
+ * each one reads the records after the last Id read,
+ * <code>WHERE (filter) AND Id &gt; 'last' ORDER BY Id LIMIT n</code>.
+ * <p>
+ * No query locator is held between pages, so a slow handler can not make it
+ * expire. The page size starts at keysetPageSize, is halved when a page
+ * takes longer than keysetTargetTime and grows back when a page takes less
+ * than half of it. Only the query is timed, not the delivery.
+ * </p>
+ * <p>
+ * With a reconCheckpointFile, the last Id of each delivered page is saved
+ * there and a new run of the same query resumes after it. The checkpoint is
+ * removed once the query completes or the handler stops it; it is only kept
+ * when the query fails.
+ * </p>
+ */
+class KeysetPager {
+
+    private static final Log log = Log.getLog(KeysetPager.class);
+
+    /**
+     * Smallest page size the adaptation goes down to.
+     */
+    private static final int MIN_PAGE_SIZE = 200;
+
+    private final SalesforceUserOp userOp;
+
+    private final SalesforceConfiguration configuration;
+
+    KeysetPager(SalesforceUserOp userOp, SalesforceConfiguration configuration) {
+        this.userOp = userOp;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Delivers every record matching the query, in Id order.
+     *
+     * @return false if the handler stopped the iteration
+     */
+    public boolean execute(FilterWhereBuilder query, ResultsHandler handler,
+            OperationOptions options) {
+        String key = configuration.getUniqueAttribute();
+        int maxPageSize = configuration.getKeysetPageSize();
+        long targetTime = configuration.getKeysetTargetTime();
+        int pageSize = maxPageSize;
+
+        // Resume after the last Id a previous run of the query delivered
+        ReconCheckpoints checkpoints = ReconCheckpoints
+                .getInstance(configuration);
+        String checkpoint = checkpoints != null ? ReconCheckpoints.getKey(
+                configuration, userOp.convertSearchQuery(query, key, null,
+                        options)) : null;
+        String lastId = checkpoint != null ? checkpoints.get(checkpoint) : null;
+        if (lastId != null) {
+            log.info("Resuming the query after {0}", lastId);
+        }
+
+        while (true) {
+            FilterWhereBuilder where = query;
+            if (lastId != null) {
+                FilterWhereBuilder after = new FilterWhereBuilder();
+                after.addBind(new SOQLParam(key, lastId, Types.VARCHAR), ">");
+                if (query != null) {
+                    where = new FilterWhereBuilder();
+                    where.join("AND", query, after);
+                } else {
+                    where = after;
+                }
+            }
+
+            final List<ConnectorObject> page = new ArrayList<ConnectorObject>(
+                    pageSize);
+            long start = System.currentTimeMillis();
+            userOp.executeSoql(userOp.convertSearchQuery(where, key, pageSize,
+                    options), new ResultsHandler() {
+                public boolean handle(ConnectorObject obj) {
+                    return page.add(obj);
+                }
+            });
+            long elapsed = System.currentTimeMillis() - start;
+
+            for (ConnectorObject obj : page) {
+                if (!handler.handle(obj)) {
+                    // Stopped on purpose, the next run starts over
+                    if (checkpoint != null) {
+                        checkpoints.remove(checkpoint);
+                    }
+                    return false;
+                }
+            }
+            if (page.size() < pageSize) {
+                if (checkpoint != null) {
+                    checkpoints.remove(checkpoint);
+                }
+                return true;
+            }
+            lastId = page.get(page.size() - 1).getUid().getUidValue();
+            if (checkpoint != null) {
+                checkpoints.put(checkpoint, lastId);
+            }
+
+            int previous = pageSize;
+            if (elapsed > targetTime) {
+                pageSize = Math.max(MIN_PAGE_SIZE, pageSize / 2);
+            } else if (elapsed < targetTime / 2) {
+                pageSize = Math.min(maxPageSize, pageSize * 3 / 2);
+            }
+            if (pageSize != previous) {
+                log.info("Keyset page of {0} records took {1} ms, next pages of {2}",
+                        previous, elapsed, pageSize);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.forgerock.openicf.salesforce.SalesforceConnection.OAuthUser;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * The access token of an org user, shared by every connection of the
+ * process: pooled connector instances log in once, on first use, and
+ * refresh the token for each other. The store is dropped when the last
+ * connection using it is disposed.
+ */
+class OAuthTokenStore {
+
+    private static final Log log = Log.getLog(OAuthTokenStore.class);
+
+    private static final Map<String, OAuthTokenStore> instances = new HashMap<String, OAuthTokenStore>();
+
+    private final String key;
+
+    private volatile OAuthUser token;
+
+    private int references;
+
+    private OAuthTokenStore(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the store of the org user and credentials of the
+     * configuration, creating it if needed. Each call must be paired with
+     * {@link #release(OAuthTokenStore)}.
+     */
+    static synchronized OAuthTokenStore acquire(
+            SalesforceConfiguration configuration) {
+        String key = configuration.getCredentialsKey();
+        OAuthTokenStore store = instances.get(key);
+        if (store == null) {
+            store = new OAuthTokenStore(key);
+            instances.put(key, store);
+        }
+        store.references++;
+        return store;
+    }
+
+    /**
+     * Releases a store returned by
+     * {@link #acquire(SalesforceConfiguration)} and drops it, with its
+     * token, once no connection uses it.
+     */
+    static synchronized void release(OAuthTokenStore store) {
+        if (--store.references == 0 && instances.get(store.key) == store) {
+            instances.remove(store.key);
+        }
+    }
+
+    /**
+     * @return the current token, or null before the first login
+     */
+    public OAuthUser getToken() {
+        return token;
+    }
+
+    /**
+     * Replaces the stale token with a new one, logging in with the given
+     * connection.
+     * <p>
+     * Only one login runs at a time; callers waiting for it reuse its token
+     * instead of logging in again.
+     * </p>
+     * 
+     * @param stale
+     *            the token to replace, null for the first login
+     * @return the current token
+     */
+    public synchronized OAuthUser refresh(OAuthUser stale,
+            SalesforceConnection connection) {
+        if (token != stale) {
+            // Another connection has already replaced it
+            return token;
+        }
+        log.ok("Logging in to {0}", connection.getReference());
+        token = connection.login();
+        return token;
+    }
+}
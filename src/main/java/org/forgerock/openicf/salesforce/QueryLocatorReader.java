@@ -0,0 +1,187 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ * Reads a query cursor with several pages in flight.
+ * <p>
+ * The <code>nextRecordsUrl</code> of a page is the query locator followed by
+ * the offset of the next page (<code>.../query/01g...-2000</code>). Once the
+ * first page gives the offset step and the <code>totalSize</code>, the
+ * remaining pages are fetched by offset, fanOut at a time. In ordered mode
+ * the pages are delivered in the query order and at most twice fanOut pages
+ * are held in memory; otherwise each page is delivered as soon as it is
+ * fetched. A cursor whose locator has another form is followed page after
+ * page.
+ * </p>
+ */
+class QueryLocatorReader {
+
+    private static final Log log = Log.getLog(QueryLocatorReader.class);
+
+    private static final Pattern LOCATOR = Pattern.compile("(.*-)(\\d+)");
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "salesforce-query-fetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final QueryPager.PageFetcher fetcher;
+
+    private final int fanOut;
+
+    private final boolean ordered;
+
+    QueryLocatorReader(QueryPager.PageFetcher fetcher, int fanOut,
+            boolean ordered) {
+        this.fetcher = fetcher;
+        this.fanOut = fanOut;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Delivers every record of the cursor starting at relativeUrl.
+     *
+     * @return false if the handler stopped the iteration
+     */
+    public boolean execute(String relativeUrl, ResultsHandler handler) {
+        QueryPager.Page first = fetcher.fetch(relativeUrl);
+        String next = first.getNextRecordsUrl();
+        Matcher locator = next != null ? LOCATOR.matcher(next) : null;
+        if (locator == null || !locator.matches()) {
+            if (next != null) {
+                log.info("Unexpected query locator {0}, reading it in sequence",
+                        next);
+            }
+            return QueryPager.deliver(first, handler)
+                    && (next == null || new QueryPager(fetcher, 1).execute(
+                            next, handler));
+        }
+        if (!QueryPager.deliver(first, handler)) {
+            return false;
+        }
+
+        String prefix = locator.group(1);
+        int step = Integer.parseInt(locator.group(2));
+        log.info("Fetching {0} records {1} pages at a time",
+                first.getTotalSize(), fanOut);
+
+        ExecutorService executor = Executors.newFixedThreadPool(fanOut,
+                THREAD_FACTORY);
+        try {
+            return ordered ? executeOrdered(executor, prefix, step, first
+                    .getTotalSize(), handler) : executeUnordered(executor,
+                    prefix, step, first.getTotalSize(), handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException(
+                    "Interrupted while waiting for a query page", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean executeOrdered(ExecutorService executor, String prefix,
+            int step, int totalSize, ResultsHandler handler)
+            throws InterruptedException {
+        LinkedList<Future<QueryPager.Page>> pending = new LinkedList<Future<QueryPager.Page>>();
+        int offset = step;
+        while (offset < totalSize || !pending.isEmpty()) {
+            // Keep the pool busy while the oldest page is delivered
+            while (offset < totalSize && pending.size() < 2 * fanOut) {
+                pending.add(executor.submit(fetch(prefix + offset)));
+                offset += step;
+            }
+            if (!QueryPager.deliver(get(pending.removeFirst()), handler)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean executeUnordered(ExecutorService executor, String prefix,
+            int step, int totalSize, ResultsHandler handler)
+            throws InterruptedException {
+        CompletionService<QueryPager.Page> completion = new ExecutorCompletionService<QueryPager.Page>(
+                executor);
+        int offset = step;
+        int running = 0;
+        while (offset < totalSize || running > 0) {
+            while (offset < totalSize && running < fanOut) {
+                completion.submit(fetch(prefix + offset));
+                offset += step;
+                running++;
+            }
+            running--;
+            if (!QueryPager.deliver(get(completion.take()), handler)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Callable<QueryPager.Page> fetch(final String relativeUrl) {
+        return new Callable<QueryPager.Page>() {
+            public QueryPager.Page call() {
+                return fetcher.fetch(relativeUrl);
+            }
+        };
+    }
+
+    private QueryPager.Page get(Future<QueryPager.Page> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new ConnectorException(e.getCause());
+        }
+    }
+}
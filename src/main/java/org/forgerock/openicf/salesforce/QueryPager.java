@@ -0,0 +1,216 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ * Walks a query cursor while prefetching the following pages.
+ * <p>
+ * The first page is fetched on the caller's thread. If the result set has
+ * more pages, a background thread follows <code>nextRecordsUrl</code> and
+ * hands the decoded pages over through a bounded queue while the caller's
+ * thread drains the current page into the {@link ResultsHandler}. The queue
+ * capacity is the prefetch depth: the fetcher blocks once that many pages
+ * are waiting. When the handler returns false, or delivery fails, the
+ * fetcher is interrupted and any prefetched pages are dropped.
+ * </p>
+ */
+class QueryPager {
+
+    private static final Log log = Log.getLog(QueryPager.class);
+
+    /**
+     * Fetches and decodes one query page.
+     */
+    interface PageFetcher {
+        Page fetch(String relativeUrl);
+    }
+
+    /**
+     * A decoded query page.
+     */
+    static class Page {
+
+        private final List<ConnectorObject> records;
+
+        private final String nextRecordsUrl;
+
+        private final int totalSize;
+
+        Page(List<ConnectorObject> records, String nextRecordsUrl) {
+            this(records, nextRecordsUrl, 0);
+        }
+
+        Page(List<ConnectorObject> records, String nextRecordsUrl,
+                int totalSize) {
+            this.records = records;
+            this.nextRecordsUrl = nextRecordsUrl;
+            this.totalSize = totalSize;
+        }
+
+        List<ConnectorObject> getRecords() {
+            return records;
+        }
+
+        String getNextRecordsUrl() {
+            return nextRecordsUrl;
+        }
+
+        /**
+         * @return the number of records of the whole result set
+         */
+        int getTotalSize() {
+            return totalSize;
+        }
+    }
+
+    /**
+     * Marks the end of the cursor in the hand-off queue.
+     */
+    private static final Object END = new Object();
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "salesforce-query-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final PageFetcher fetcher;
+
+    private final int prefetchDepth;
+
+    QueryPager(PageFetcher fetcher, int prefetchDepth) {
+        this.fetcher = fetcher;
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    /**
+     * Delivers every record of the cursor starting at relativeUrl.
+     *
+     * @return false if the handler stopped the iteration
+     */
+    public boolean execute(String relativeUrl, ResultsHandler handler) {
+        Page first = fetcher.fetch(relativeUrl);
+        if (first.getNextRecordsUrl() == null) {
+            return deliver(first, handler);
+        }
+
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(
+                prefetchDepth);
+        ExecutorService executor = Executors
+                .newSingleThreadExecutor(THREAD_FACTORY);
+        executor.execute(new Prefetcher(first.getNextRecordsUrl(), queue));
+        try {
+            if (!deliver(first, handler)) {
+                return false;
+            }
+            while (true) {
+                Object next = queue.take();
+                if (next == END) {
+                    return true;
+                } else if (next instanceof RuntimeException) {
+                    throw (RuntimeException) next;
+                } else if (next instanceof Error) {
+                    throw (Error) next;
+                } else if (!deliver((Page) next, handler)) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException(
+                    "Interrupted while waiting for the next query page", e);
+        } finally {
+            // Stops the fetcher if it is still running and drops whatever
+            // has been prefetched. Clearing the queue releases a fetcher
+            // blocked on a full queue.
+            executor.shutdownNow();
+            queue.clear();
+        }
+    }
+
+    static boolean deliver(Page page, ResultsHandler handler) {
+        for (ConnectorObject co : page.getRecords()) {
+            if (!handler.handle(co)) {
+                log.ok("ResultsHandler stopped the query");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class Prefetcher implements Runnable {
+
+        private final BlockingQueue<Object> queue;
+
+        private String relativeUrl;
+
+        Prefetcher(String relativeUrl, BlockingQueue<Object> queue) {
+            this.relativeUrl = relativeUrl;
+            this.queue = queue;
+        }
+
+        public void run() {
+            try {
+                while (relativeUrl != null) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    Page page = fetcher.fetch(relativeUrl);
+                    queue.put(page);
+                    relativeUrl = page.getNextRecordsUrl();
+                }
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // Cancelled by the consumer
+            } catch (RuntimeException e) {
+                fail(e);
+            } catch (Error e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Throwable t) {
+            try {
+                queue.put(t);
+            } catch (InterruptedException e) {
+                // Cancelled by the consumer
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ * Streaming reader of the Salesforce query resource response.
+ * <p>
+ * The <code>records</code> array is read token by token and each record is
+ * turned into a {@link ConnectorObject} straight from the parser, so no
+ * intermediate Map/List tree is built for the page.
+ * </p>
+ *
+ * <pre>
+ * { "totalSize" : 3500, "done" : false,
+ *   "nextRecordsUrl" : "/services/data/v27.0/query/01gD0000002HU6KIAW-2000",
+ *   "records" : [ { "attributes" : { ... }, "Id" : "005...", ... }, ... ] }
+ * </pre>
+ */
+class QueryResultReader {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final SalesforceConfiguration configuration;
+
+    private final ObjectClass objectClass;
+
+    private int totalSize;
+
+    private boolean done = true;
+
+    private String nextRecordsUrl;
+
+    QueryResultReader(SalesforceConfiguration configuration) {
+        this(configuration, ObjectClass.ACCOUNT);
+    }
+
+    /**
+     * @param objectClass
+     *            the object class of the records read
+     */
+    QueryResultReader(SalesforceConfiguration configuration,
+            ObjectClass objectClass) {
+        this.configuration = configuration;
+        this.objectClass = objectClass;
+    }
+
+    /**
+     * Reads one query result page and passes each record to the handler as
+     * soon as it has been parsed. Reading stops as soon as the handler
+     * returns false; the rest of the body is left unread.
+     *
+     * @param in
+     *            the response body
+     * @param handler
+     *            the handler receiving the records
+     * @return false if the handler stopped the iteration
+     * @throws IOException
+     *             if the body can not be read or is not a query result
+     */
+    public boolean read(InputStream in, ResultsHandler handler)
+            throws IOException {
+        totalSize = 0;
+        done = true;
+        nextRecordsUrl = null;
+
+        JsonParser parser = JSON_FACTORY.createJsonParser(in);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Query result is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+
+                if ("totalSize".equals(fieldName)) {
+                    totalSize = parser.getIntValue();
+                } else if ("done".equals(fieldName)) {
+                    done = token == JsonToken.VALUE_TRUE;
+                } else if ("nextRecordsUrl".equals(fieldName)) {
+                    nextRecordsUrl = token == JsonToken.VALUE_NULL ? null
+                            : parser.getText();
+                } else if ("records".equals(fieldName)
+                        && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        if (!handler.handle(readRecord(parser))) {
+                            return false;
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return true;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Reads the response of an sObject resource: a record, or an array of
+     * records where the missing ones are null.
+     *
+     * @return false if the handler stopped the iteration
+     * @throws IOException
+     *             if the body can not be read or is not a record
+     */
+    public boolean readRecords(InputStream in, ResultsHandler handler)
+            throws IOException {
+        JsonParser parser = JSON_FACTORY.createJsonParser(in);
+        try {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                return handler.handle(readRecord(parser));
+            }
+            if (token != JsonToken.START_ARRAY) {
+                throw new IOException("Response is not a record");
+            }
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == JsonToken.START_OBJECT
+                        && !handler.handle(readRecord(parser))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Builds a {@link ConnectorObject} from the record object the parser is
+     * currently positioned on. The parser is left on the closing END_OBJECT.
+     */
+    ConnectorObject readRecord(JsonParser parser) throws IOException {
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setObjectClass(objectClass);
+        String uid = null;
+        String name = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if (token == JsonToken.VALUE_NULL) {
+                continue;
+            }
+
+            // UID (Id)
+            if (key.equals(configuration.getUniqueAttribute())) {
+                uid = parser.getText();
+                builder.setUid(uid);
+                continue;
+            }
+
+            // NAME (Username)
+            if (key.equals(configuration.getNameAttribute())) {
+                name = parser.getText();
+                builder.setName(name);
+                continue;
+            }
+
+            // Other attributes
+            if (token == JsonToken.VALUE_STRING) {
+                String stringValue = parser.getText();
+                if (StringUtil.isEmpty(stringValue)) {
+                    continue;
+                }
+                builder.addAttribute(key, stringValue);
+
+            } else if (token == JsonToken.START_ARRAY) {
+                builder.addAttribute(key, readValues(parser));
+
+            } else {
+                // "attributes" and relationship objects
+                parser.skipChildren();
+            }
+        }
+        if (name == null && uid != null) {
+            // sObjects without the name attribute are named by their Id
+            builder.setName(uid);
+        }
+        return builder.build();
+    }
+
+    private List<Object> readValues(JsonParser parser) throws IOException {
+        List<Object> values = new ArrayList<Object>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            switch (token) {
+            case VALUE_STRING:
+                values.add(parser.getText());
+                break;
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                values.add(parser.getNumberValue());
+                break;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                values.add(token == JsonToken.VALUE_TRUE);
+                break;
+            case VALUE_NULL:
+                break;
+            default:
+                parser.skipChildren();
+            }
+        }
+        return values;
+    }
+
+    public int getTotalSize() {
+        return totalSize;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the locator of the next page, or null if the result set is done
+     */
+    public String getNextRecordsUrl() {
+        return done ? null : nextRecordsUrl;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.identityconnectors.common.IOUtil;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * The reconciliation checkpoints kept in the reconCheckpointFile: for each
+ * query, the last Id delivered, so that running the same query again resumes
+ * after it.
+ * <p>
+ * A query is identified by a digest of the org user and its SOQL (without
+ * the keyset condition), so each range of a partitioned reconciliation has
+ * its own checkpoint; the reconciliation itself saves its range boundaries
+ * and the ranges done, see {@link SalesforcePartitionedQuery}. The file carries a CRC32 of its entries: a truncated
+ * or edited file is ignored as a whole. A checkpoint older than
+ * reconCheckpointTtl is ignored and removed. The file is written to a
+ * temporary file first, then renamed.
+ * </p>
+ */
+class ReconCheckpoints {
+
+    private static final Log log = Log.getLog(ReconCheckpoints.class);
+
+    private static final String CHECKSUM = "checksum";
+
+    private static final Map<String, ReconCheckpoints> instances = new HashMap<String, ReconCheckpoints>();
+
+    private final File file;
+
+    private final long ttl;
+
+    /**
+     * The Id and the time it was saved, by query digest.
+     */
+    private final Map<String, String> checkpoints = new TreeMap<String, String>();
+
+    private ReconCheckpoints(File file, long ttl) {
+        this.file = file;
+        this.ttl = ttl;
+        load();
+    }
+
+    /**
+     * @return the checkpoints of the reconCheckpointFile, or null if the
+     *         configuration has none
+     */
+    static synchronized ReconCheckpoints getInstance(
+            SalesforceConfiguration configuration) {
+        String path = configuration.getReconCheckpointFile();
+        if (StringUtil.isBlank(path)) {
+            return null;
+        }
+        String key = new File(path).getAbsolutePath();
+        ReconCheckpoints checkpoints = instances.get(key);
+        if (checkpoints == null) {
+            checkpoints = new ReconCheckpoints(new File(key), configuration
+                    .getReconCheckpointTtl());
+            instances.put(key, checkpoints);
+        }
+        return checkpoints;
+    }
+
+    /**
+     * Identifies a query of the org user of the configuration.
+     */
+    static String getKey(SalesforceConfiguration configuration, String soql) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((configuration.getLoginUrl() + "|"
+                    + configuration.getUsername() + "|"
+                    + configuration.getServicePath() + "|" + soql)
+                    .getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Integer.toHexString((b & 0xff) | 0x100)
+                        .substring(1));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConnectorException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new ConnectorException(e);
+        }
+    }
+
+    /**
+     * @return the last Id delivered by the query, or null
+     */
+    public synchronized String get(String key) {
+        String checkpoint = checkpoints.get(key);
+        if (checkpoint == null) {
+            return null;
+        }
+        if (isExpired(checkpoint)) {
+            log.info("Checkpoint {0} has expired", key);
+            remove(key);
+            return null;
+        }
+        return checkpoint.substring(0, checkpoint.lastIndexOf(','));
+    }
+
+    public synchronized void put(String key, String lastId) {
+        checkpoints.put(key, lastId + "," + System.currentTimeMillis());
+        store();
+    }
+
+    public synchronized void remove(String key) {
+        if (checkpoints.remove(key) != null) {
+            store();
+        }
+    }
+
+    private boolean isExpired(String checkpoint) {
+        try {
+            long saved = Long.parseLong(checkpoint.substring(checkpoint
+                    .lastIndexOf(',') + 1));
+            return saved + ttl < System.currentTimeMillis();
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+        } catch (IOException e) {
+            log.warn(e, "Ignoring the checkpoints in {0}", file);
+            return;
+        } finally {
+            IOUtil.quietClose(in);
+        }
+
+        String checksum = (String) properties.remove(CHECKSUM);
+        Map<String, String> loaded = new TreeMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            loaded.put(name, properties.getProperty(name));
+        }
+        if (!checksum(loaded).equals(checksum)) {
+            log.warn("Ignoring the checkpoints in {0}, the checksum does not match",
+                    file);
+            return;
+        }
+        for (Iterator<Map.Entry<String, String>> i = loaded.entrySet()
+                .iterator(); i.hasNext();) {
+            if (isExpired(i.next().getValue())) {
+                i.remove();
+            }
+        }
+        checkpoints.putAll(loaded);
+        log.info("{0} checkpoints loaded from {1}", checkpoints.size(), file);
+    }
+
+    private void store() {
+        Properties properties = new Properties();
+        properties.putAll(checkpoints);
+        properties.put(CHECKSUM, checksum(checkpoints));
+
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            out = new FileOutputStream(temporary);
+            properties.store(out, "Salesforce reconciliation checkpoints");
+            out.close();
+            out = null;
+            if (!temporary.renameTo(file)
+                    && (!file.delete() || !temporary.renameTo(file))) {
+                throw new IOException("Can not rename " + temporary);
+            }
+        } catch (IOException e) {
+            log.warn(e, "Failed to persist the checkpoints in {0}", file);
+        } finally {
+            IOUtil.quietClose(out);
+        }
+    }
+
+    private static String checksum(Map<String, String> entries) {
+        CRC32 crc = new CRC32();
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                crc.update((entry.getKey() + "=" + entry.getValue() + "\n")
+                        .getBytes("UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new ConnectorException(e);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.util.Random;
+
+import org.restlet.data.Method;
+import org.restlet.data.Status;
+
+/**
+ * Decides whether and when a failed REST request is retried.
+ * <p>
+ * A request is retried when Salesforce rejected it before doing any work
+ * (REQUEST_LIMIT_EXCEEDED, UNABLE_TO_LOCK_ROW, no connection) or, for
+ * idempotent requests only, when it failed with a 5xx or a communication
+ * error. The delay doubles at each attempt, with jitter, up to
+ * retryMaxDelay; a Retry-After header takes precedence.
+ * </p>
+ */
+class RetryPolicy {
+
+    private static final Random random = new Random();
+
+    private final int maxAttempts;
+
+    private final long initialDelay;
+
+    private final long maxDelay;
+
+    RetryPolicy(SalesforceConfiguration configuration) {
+        this.maxAttempts = configuration.getRetryMaxAttempts();
+        this.initialDelay = configuration.getRetryInitialDelay();
+        this.maxDelay = configuration.getRetryMaxDelay();
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * GET, PUT, DELETE and PATCH (tunnelled in a POST) can be sent twice
+     * without side effects. Setting a password cannot: once the first
+     * attempt went through, the second one fails because the password was
+     * just used. Neither can uploading the data of a Bulk API job, which a
+     * second attempt would add again to the job.
+     */
+    public static boolean isIdempotent(Method method, String relativeUrl) {
+        if (Method.PUT.equals(method)) {
+            return !relativeUrl.endsWith("/batches");
+        }
+        if (!Method.POST.equals(method)) {
+            return true;
+        }
+        return relativeUrl.contains("_HttpMethod=PATCH");
+    }
+
+    /**
+     * @param status
+     *            the status of the failed attempt
+     * @param errorCode
+     *            the Salesforce errorCode of the response, may be null
+     * @param idempotent
+     *            whether the request may be sent twice
+     * @return whether the request should be sent again
+     */
+    public boolean isRetryable(Status status, String errorCode,
+            boolean idempotent) {
+        if ("REQUEST_LIMIT_EXCEEDED".equals(errorCode)
+                || "UNABLE_TO_LOCK_ROW".equals(errorCode)
+                || "SERVER_UNAVAILABLE".equals(errorCode)) {
+            // Rejected or rolled back, nothing was written
+            return true;
+        }
+        int code = status.getCode();
+        if (code == Status.CONNECTOR_ERROR_CONNECTION.getCode()
+                || code == 429 || code == 503) {
+            // Never reached or refused by the server
+            return true;
+        }
+        return idempotent && (status.isServerError() || status.isConnectorError());
+    }
+
+    /**
+     * Returns how long to wait before the given attempt is retried.
+     *
+     * @param attempt
+     *            the attempt that failed, starting at 1
+     * @param retryAfter
+     *            the Retry-After header of the response, may be null
+     * @return the delay in milliseconds, or -1 if the server asks to wait
+     *         longer than retryMaxDelay
+     */
+    public long getDelay(int attempt, String retryAfter) {
+        if (retryAfter != null) {
+            try {
+                long delay = Long.parseLong(retryAfter.trim()) * 1000;
+                return delay > maxDelay ? -1 : delay;
+            } catch (NumberFormatException e) {
+                // HTTP-date, fall back to the backoff
+            }
+        }
+        long delay = Math.min(maxDelay, initialDelay << Math.min(attempt - 1, 30));
+        // Equal jitter: between half and the full delay
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+}
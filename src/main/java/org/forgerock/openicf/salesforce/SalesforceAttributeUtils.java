@@ -24,6 +24,7 @@
  */
 package org.forgerock.openicf.salesforce;
 
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -106,6 +107,44 @@ public class SalesforceAttributeUtils {
         return alist.toArray(new String[0]);
     }
 
+    /**
+     * Returns the {@link Types} of a field from the describe of its sObject,
+     * which decides how {@link FilterWhereBuilder} renders its literals.
+     * 
+     * @return the type, VARCHAR for text, picklist, id and reference fields
+     *         and for fields missing from the describe
+     */
+    public static int getSoqlType(Map describe, String fieldName) {
+        Object fields = describe != null ? describe.get("fields") : null;
+        if (!(fields instanceof List)) {
+            return Types.VARCHAR;
+        }
+        for (Map<String, Object> field : (List<Map<String, Object>>) fields) {
+            if (!fieldName.equalsIgnoreCase((String) field.get("name"))) {
+                continue;
+            }
+            String type = (String) field.get("type");
+            if ("boolean".equals(type)) {
+                return Types.BOOLEAN;
+            } else if ("date".equals(type)) {
+                return Types.DATE;
+            } else if ("datetime".equals(type)) {
+                return Types.TIMESTAMP;
+            } else if ("time".equals(type)) {
+                return Types.TIME;
+            } else if ("int".equals(type)) {
+                return Types.INTEGER;
+            } else if ("long".equals(type)) {
+                return Types.BIGINT;
+            } else if ("double".equals(type) || "currency".equals(type)
+                    || "percent".equals(type)) {
+                return Types.DOUBLE;
+            }
+            return Types.VARCHAR;
+        }
+        return Types.VARCHAR;
+    }
+
     public static void parseDescribe(Map describe, SchemaBuilder schemaBuilder) {
         Object name = describe.get("name");
         ObjectClassInfoBuilder ocBuilder = new ObjectClassInfoBuilder();
@@ -0,0 +1,397 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.ScriptContext;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.representation.WriterRepresentation;
+
+/**
+ * Mass provisioning through Bulk API 2.0 ingest jobs, run with
+ * {@link SalesforceConnector#runScriptOnConnector}.
+ * <p>
+ * The script language is <code>bulk</code> and the script text is the
+ * operation:
+ * </p>
+ * <ul>
+ * <li><code>create</code> inserts the users given in the
+ * <code>objects</code> argument, a list of attribute maps. Passwords can not
+ * be set through the Bulk API.</li>
+ * <li><code>deactivate</code> sets the active attribute to false for the
+ * users given in the <code>uids</code> argument, a list of ids.</li>
+ * </ul>
+ * <p>
+ * The records are uploaded as one streamed CSV batch. The result is a list
+ * of maps, one per input object and in input order, with the keys
+ * <code>__UID__</code>, <code>__NAME__</code> (create only),
+ * <code>success</code> and <code>error</code>.
+ * </p>
+ */
+public class SalesforceBulkIngest {
+
+    private static final Log log = Log.getLog(SalesforceBulkIngest.class);
+
+    public static final String SCRIPT_LANGUAGE = "bulk";
+
+    public static final String OPERATION_CREATE = "create";
+
+    public static final String OPERATION_DEACTIVATE = "deactivate";
+
+    public static final String ARG_OBJECTS = "objects";
+
+    public static final String ARG_UIDS = "uids";
+
+    public static final String RESULT_SUCCESS = "success";
+
+    public static final String RESULT_ERROR = "error";
+
+    private final SalesforceUserOp op;
+
+    private final SalesforceConfiguration configuration;
+
+    private final BulkJobMonitor monitor;
+
+    SalesforceBulkIngest(SalesforceUserOp op,
+            SalesforceConfiguration configuration) {
+        this.op = op;
+        this.configuration = configuration;
+        this.monitor = new BulkJobMonitor(op, configuration);
+    }
+
+    /**
+     * Runs the ingest operation described by the script context.
+     *
+     * @return the per-object outcomes
+     */
+    public List<Map<String, Object>> execute(ScriptContext request) {
+        String operation = request.getScriptText() != null ? request
+                .getScriptText().trim() : null;
+        Map<String, Object> arguments = request.getScriptArguments();
+
+        if (OPERATION_CREATE.equalsIgnoreCase(operation)) {
+            return create(getList(arguments, ARG_OBJECTS));
+        } else if (OPERATION_DEACTIVATE.equalsIgnoreCase(operation)) {
+            return deactivate(getList(arguments, ARG_UIDS));
+        }
+        throw new IllegalArgumentException("Unsupported bulk operation: "
+                + operation);
+    }
+
+    private List<Map<String, Object>> create(Collection<?> objects) {
+        String nameAttribute = configuration.getNameAttribute();
+
+        List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(
+                objects.size());
+        for (Object object : objects) {
+            if (!(object instanceof Map)) {
+                throw new IllegalArgumentException(
+                        "Bulk create objects must be attribute maps");
+            }
+            Map<String, Object> row = new LinkedHashMap<String, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                String key = String.valueOf(entry.getKey());
+                if (Name.NAME.equals(key)) {
+                    key = nameAttribute;
+                } else if (Uid.NAME.equals(key)) {
+                    throw new IllegalArgumentException(
+                            "Bulk create objects must not have a __UID__");
+                } else if (OperationalAttributes.PASSWORD_NAME.equals(key)
+                        || key.equals(configuration.getPasswordAttribute())) {
+                    throw new IllegalArgumentException(
+                            "Passwords can not be set by bulk create");
+                }
+                row.put(key, entry.getValue());
+            }
+            if (row.get(nameAttribute) == null) {
+                throw new IllegalArgumentException(
+                        "Bulk create objects must have a __NAME__");
+            }
+            rows.add(row);
+        }
+
+        Map<Integer, Map<String, Object>> outcomes = run("insert", rows,
+                nameAttribute);
+
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(
+                rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            Map<String, Object> result = outcome(outcomes, i);
+            result.put(Name.NAME, String.valueOf(rows.get(i).get(
+                    nameAttribute)));
+            results.add(result);
+        }
+        return results;
+    }
+
+    private List<Map<String, Object>> deactivate(Collection<?> uids) {
+        String uniqueAttribute = configuration.getUniqueAttribute();
+
+        List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(
+                uids.size());
+        for (Object uid : uids) {
+            Map<String, Object> row = new LinkedHashMap<String, Object>();
+            row.put(uniqueAttribute, uid instanceof Uid ? ((Uid) uid)
+                    .getUidValue() : String.valueOf(uid));
+            row.put(configuration.getActiveAttribute(), Boolean.FALSE);
+            rows.add(row);
+        }
+
+        Map<Integer, Map<String, Object>> outcomes = run("update", rows,
+                uniqueAttribute);
+
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(
+                rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            results.add(outcome(outcomes, i));
+        }
+        return results;
+    }
+
+    private Map<String, Object> outcome(
+            Map<Integer, Map<String, Object>> outcomes, int index) {
+        Map<String, Object> result = outcomes.get(index);
+        if (result == null) {
+            // Not processed, e.g. the job failed before reaching the record
+            result = new HashMap<String, Object>();
+            result.put(RESULT_SUCCESS, Boolean.FALSE);
+            result.put(RESULT_ERROR, "Record was not processed");
+        }
+        return result;
+    }
+
+    /**
+     * Uploads the rows as one ingest job, reads the outcome of each row back
+     * from the job results and deletes the job.
+     * <p>
+     * The results do not carry the row number: a result is matched by the
+     * value of the key column, to the first row with that value still
+     * without an outcome, so rows with the same value get one outcome each.
+     * </p>
+     *
+     * @param keyColumn
+     *            the column identifying a row in the results
+     * @return the outcomes, by row index
+     */
+    private Map<Integer, Map<String, Object>> run(String operation,
+            final List<Map<String, Object>> rows, String keyColumn) {
+        Map<Integer, Map<String, Object>> outcomes = new HashMap<Integer, Map<String, Object>>(
+                rows.size() * 2);
+        if (rows.isEmpty()) {
+            return outcomes;
+        }
+
+        Map<String, LinkedList<Integer>> pending = new HashMap<String, LinkedList<Integer>>(
+                rows.size() * 2);
+        for (int i = 0; i < rows.size(); i++) {
+            String key = String.valueOf(rows.get(i).get(keyColumn));
+            LinkedList<Integer> indexes = pending.get(key);
+            if (indexes == null) {
+                indexes = new LinkedList<Integer>();
+                pending.put(key, indexes);
+            }
+            indexes.add(i);
+        }
+
+        Map<String, Object> job = new HashMap<String, Object>();
+        job.put("object", "User");
+        job.put("operation", operation);
+        job.put("contentType", "CSV");
+        job.put("lineEnding", "LF");
+
+        String jobPath = monitor.createJob(
+                configuration.getBulkIngestServicePath(), job);
+        try {
+            final Set<String> columns = new LinkedHashSet<String>();
+            for (Map<String, Object> row : rows) {
+                columns.addAll(row.keySet());
+            }
+
+            op.doPut(jobPath + "/batches", new WriterRepresentation(
+                    MediaType.TEXT_CSV) {
+                @Override
+                public void write(Writer writer) throws IOException {
+                    writeCsv(writer, columns, rows);
+                }
+            }, new SalesforceUserOp.NothingCallback(), null);
+
+            monitor.setState(jobPath, "UploadComplete");
+            Map info = monitor.waitForCompletion(jobPath);
+            log.info("Bulk {0} job {1} processed: {2}, failed: {3}",
+                    operation, jobPath, info.get("numberRecordsProcessed"),
+                    info.get("numberRecordsFailed"));
+
+            readResults(jobPath + "/successfulResults/", keyColumn, pending,
+                    outcomes);
+            readResults(jobPath + "/failedResults/", keyColumn, pending,
+                    outcomes);
+        } catch (RuntimeException e) {
+            monitor.abort(jobPath);
+            throw e;
+        } finally {
+            monitor.delete(jobPath);
+        }
+        return outcomes;
+    }
+
+    private void readResults(String relativeUrl, final String keyColumn,
+            final Map<String, LinkedList<Integer>> pending,
+            final Map<Integer, Map<String, Object>> outcomes) {
+        op.doGet(relativeUrl, new SalesforceUserOp.Callback() {
+            public void call(Representation body) {
+                try {
+                    CsvReader reader = new CsvReader(new BufferedReader(
+                            new InputStreamReader(body.getStream(), "UTF-8")));
+                    try {
+                        readResults(reader, keyColumn, pending, outcomes);
+                    } finally {
+                        reader.close();
+                    }
+                } catch (IOException e) {
+                    throw new ConnectorIOException(e);
+                }
+            }
+        }, null);
+    }
+
+    private void readResults(CsvReader reader, String keyColumn,
+            Map<String, LinkedList<Integer>> pending,
+            Map<Integer, Map<String, Object>> outcomes) throws IOException {
+        List<String> header = reader.readRecord();
+        if (header == null) {
+            return;
+        }
+        int idIndex = header.indexOf("sf__Id");
+        int errorIndex = header.indexOf("sf__Error");
+        int keyIndex = header.indexOf(keyColumn);
+
+        List<String> record;
+        while ((record = reader.readRecord()) != null) {
+            if (keyIndex < 0 || keyIndex >= record.size()) {
+                continue;
+            }
+            LinkedList<Integer> indexes = pending.get(record.get(keyIndex));
+            if (indexes == null || indexes.isEmpty()) {
+                log.warn("Bulk result for an unknown row: {0}", record
+                        .get(keyIndex));
+                continue;
+            }
+            Map<String, Object> result = new HashMap<String, Object>();
+            String id = idIndex >= 0 && idIndex < record.size() ? record
+                    .get(idIndex) : null;
+            if (StringUtil.isNotBlank(id)) {
+                result.put(Uid.NAME, id);
+            }
+            if (errorIndex >= 0 && errorIndex < record.size()) {
+                result.put(RESULT_SUCCESS, Boolean.FALSE);
+                result.put(RESULT_ERROR, record.get(errorIndex));
+            } else {
+                result.put(RESULT_SUCCESS, Boolean.TRUE);
+            }
+            outcomes.put(indexes.removeFirst(), result);
+        }
+    }
+
+    static void writeCsv(Writer writer, Collection<String> columns,
+            List<Map<String, Object>> rows) throws IOException {
+        writeLine(writer, columns);
+        List<Object> values = new ArrayList<Object>(columns.size());
+        for (Map<String, Object> row : rows) {
+            values.clear();
+            for (String column : columns) {
+                values.add(row.get(column));
+            }
+            writeLine(writer, values);
+        }
+        writer.flush();
+    }
+
+    private static void writeLine(Writer writer, Collection<?> values)
+            throws IOException {
+        boolean first = true;
+        for (Object value : values) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            if (value == null) {
+                continue;
+            }
+            String text;
+            if (value instanceof Collection) {
+                // Multi-select picklist values
+                StringBuilder sb = new StringBuilder();
+                for (Object item : (Collection<?>) value) {
+                    if (sb.length() > 0) {
+                        sb.append(';');
+                    }
+                    sb.append(item);
+                }
+                text = sb.toString();
+            } else {
+                text = String.valueOf(value);
+            }
+            if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0
+                    || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+                writer.write('"');
+                writer.write(text.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(text);
+            }
+        }
+        writer.write('\n');
+    }
+
+    private static Collection<?> getList(Map<String, Object> arguments,
+            String name) {
+        Object value = arguments != null ? arguments.get(name) : null;
+        if (!(value instanceof Collection)) {
+            throw new IllegalArgumentException("Bulk operation requires the "
+                    + name + " argument");
+        }
+        return (Collection<?>) value;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.restlet.data.Form;
+import org.restlet.engine.http.header.HeaderConstants;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ClientResource;
+
+/**
+ * Runs a SOQL query as a Bulk API 2.0 query job.
+ * <p>
+ * The job is created, polled until Salesforce reports it complete and its
+ * CSV result sets are then streamed record by record into the
+ * {@link ResultsHandler}, following the <code>Sforce-Locator</code> header.
+ * The records have the attributes the REST query would return.
+ * The Bulk API 2.0 requires a servicePath of version 47.0 or later.
+ * </p>
+ *
+ * @see <a href=
+ *      "https://developer.salesforce.com/docs/atlas.en-us.api_asynch.meta/api_asynch/queries.htm"
+ *      >Bulk API 2.0 Query</a>
+ */
+public class SalesforceBulkQuery {
+
+    private static final Log log = Log.getLog(SalesforceBulkQuery.class);
+
+    static final String LOCATOR_HEADER = "Sforce-Locator";
+
+    private final SalesforceUserOp op;
+
+    private final SalesforceConfiguration configuration;
+
+    private final BulkJobMonitor monitor;
+
+    SalesforceBulkQuery(SalesforceUserOp op,
+            SalesforceConfiguration configuration) {
+        this.op = op;
+        this.configuration = configuration;
+        this.monitor = new BulkJobMonitor(op, configuration);
+    }
+
+    /**
+     * Runs the query and delivers every record to the handler.
+     *
+     * @param soql
+     *            the SOQL query
+     * @param handler
+     *            the handler receiving the records
+     */
+    public void executeQuery(String soql, ResultsHandler handler) {
+        Map<String, Object> job = new HashMap<String, Object>();
+        job.put("operation", "query");
+        job.put("query", soql);
+
+        String jobPath = monitor.createJob(
+                configuration.getBulkQueryServicePath(), job);
+        try {
+            monitor.waitForCompletion(jobPath);
+
+            String locator = null;
+            do {
+                StringBuilder relativeUrl = new StringBuilder(jobPath)
+                        .append("/results?maxRecords=").append(
+                                configuration.getBulkResultPageSize());
+                if (locator != null) {
+                    relativeUrl.append("&locator=").append(locator);
+                }
+                locator = readResults(relativeUrl.toString(), handler);
+            } while (locator != null);
+        } finally {
+            monitor.delete(jobPath);
+        }
+    }
+
+    /**
+     * Streams one CSV result set into the handler.
+     *
+     * @return the locator of the next result set, or null if there is none
+     *         or the handler stopped the iteration
+     */
+    private String readResults(String relativeUrl,
+            final ResultsHandler handler) {
+        final boolean[] proceed = new boolean[] { true };
+
+        ClientResource child = op.doGet(relativeUrl,
+                new SalesforceUserOp.Callback() {
+                    public void call(Representation body) {
+                        try {
+                            proceed[0] = readCsv(body, handler);
+                        } catch (IOException e) {
+                            throw new ConnectorIOException(e);
+                        }
+                    }
+                }, null);
+
+        if (!proceed[0]) {
+            return null;
+        }
+        Form headers = (Form) child.getResponseAttributes().get(
+                HeaderConstants.ATTRIBUTE_HEADERS);
+        String locator = headers != null ? headers.getFirstValue(
+                LOCATOR_HEADER, true) : null;
+        return StringUtil.isBlank(locator) || "null".equals(locator) ? null
+                : locator;
+    }
+
+    /**
+     * Returns the columns that {@link QueryResultReader} does not read from
+     * the JSON results of the same query: relationship fields and the
+     * boolean and number fields, which are not JSON strings. Without the
+     * describe only the relationship fields are known.
+     */
+    private boolean[] getSkippedColumns(List<String> header) {
+        Map describe = null;
+        try {
+            describe = op.getSchemaCache().getDescribe(op, "User");
+        } catch (RuntimeException e) {
+            log.warn(e, "Failed to describe User, all the columns are read");
+        }
+        boolean[] skipped = new boolean[header.size()];
+        for (int i = 0; i < header.size(); i++) {
+            String column = header.get(i);
+            if (column.indexOf('.') >= 0) {
+                skipped[i] = true;
+                continue;
+            }
+            switch (SalesforceAttributeUtils.getSoqlType(describe, column)) {
+            case Types.BOOLEAN:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DOUBLE:
+                skipped[i] = true;
+                break;
+            default:
+                skipped[i] = false;
+            }
+        }
+        return skipped;
+    }
+
+    private boolean readCsv(Representation body, ResultsHandler handler)
+            throws IOException {
+        CsvReader reader = new CsvReader(new BufferedReader(
+                new InputStreamReader(body.getStream(), "UTF-8")));
+        try {
+            List<String> header = reader.readRecord();
+            if (header == null) {
+                return true;
+            }
+            String uniqueAttribute = configuration.getUniqueAttribute();
+            String nameAttribute = configuration.getNameAttribute();
+            boolean[] skipped = getSkippedColumns(header);
+
+            List<String> record;
+            while ((record = reader.readRecord()) != null) {
+                ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+                String uid = null;
+                String name = null;
+                for (int i = 0; i < header.size() && i < record.size(); i++) {
+                    String key = header.get(i);
+                    String value = record.get(i);
+                    if (StringUtil.isEmpty(value)) {
+                        continue;
+                    }
+                    if (key.equals(uniqueAttribute)) {
+                        uid = value;
+                        builder.setUid(value);
+                    } else if (key.equals(nameAttribute)) {
+                        name = value;
+                        builder.setName(value);
+                    } else if (!skipped[i]) {
+                        builder.addAttribute(key, value);
+                    }
+                }
+                if (name == null && uid != null) {
+                    // As QueryResultReader does
+                    builder.setName(uid);
+                }
+                if (!handler.handle(builder.build())) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+}
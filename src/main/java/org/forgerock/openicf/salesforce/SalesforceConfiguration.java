@@ -24,8 +24,14 @@
  */
 package org.forgerock.openicf.salesforce;
 
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import org.identityconnectors.common.Assertions;
+import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.spi.AbstractConfiguration;
 import org.identityconnectors.framework.spi.ConfigurationProperty;
 import org.restlet.data.Form;
@@ -42,6 +48,27 @@ import org.restlet.data.Reference;
  */
 public class SalesforceConfiguration extends AbstractConfiguration {
 
+    public static final String API_TYPE_REST = "rest";
+
+    public static final String API_TYPE_BULK = "bulk";
+
+    public static final String SYNC_MODE_MODSTAMP = "modstamp";
+    public static final String SYNC_MODE_REPLICATION = "replication";
+    public static final String SYNC_MODE_STREAMING = "streaming";
+
+    public static final String PAGING_MODE_CURSOR = "cursor";
+    public static final String PAGING_MODE_KEYSET = "keyset";
+
+    /**
+     * First API version of Bulk API 2.0 queries.
+     */
+    private static final int BULK_API_VERSION = 47;
+
+    /**
+     * First API version of the Composite API.
+     */
+    private static final int COMPOSITE_API_VERSION = 38;
+
     // Exposed configuration properties.
 
     /**
@@ -65,10 +92,10 @@ public class SalesforceConfiguration extends AbstractConfiguration {
     private GuardedString password = null;
 
     /**
-     * The API type of Salesforce (scim, rest, soap...) Currently rest is
-     * supported.
+     * The API type of Salesforce (scim, rest, soap...) Currently rest and bulk
+     * are supported. With bulk, large queries run as Bulk API 2.0 jobs.
      */
-    private String apiType = "rest";
+    private String apiType = API_TYPE_REST;
 
     private String uniqueAttribute = "Id";
     private String nameAttribute = "Username";
@@ -79,6 +106,145 @@ public class SalesforceConfiguration extends AbstractConfiguration {
     private String servicePath = "services/data/v27.0";
     private boolean ignorePasswordError = true;
 
+    /**
+     * The number of records Salesforce returns per query page (200 - 2000).
+     */
+    private int queryBatchSize = 2000;
+
+    /**
+     * The number of query pages fetched ahead of the ResultsHandler. 0, the
+     * default, streams each page record by record instead.
+     */
+    private int queryPrefetchDepth = 0;
+
+    /**
+     * How many pages of a query are fetched concurrently by their query
+     * locator offset, and whether they are delivered in the query order.
+     */
+    private int queryFanOut = 1;
+    private boolean queryOrdered = true;
+
+    /**
+     * How query results are paged: following the server side cursor
+     * (cursor), or with successive queries ordered by Id (keyset). Keyset
+     * pages hold at most keysetPageSize records, fewer when a page takes
+     * longer than keysetTargetTime milliseconds.
+     */
+    private String queryPagingMode = PAGING_MODE_CURSOR;
+    private int keysetPageSize = 2000;
+    private long keysetTargetTime = 10000;
+
+    /**
+     * A local file where keyset paged queries save the last Id they
+     * delivered, and how long in milliseconds a saved Id is resumed from.
+     */
+    private String reconCheckpointFile = null;
+    private long reconCheckpointTtl = 86400000;
+
+    /**
+     * The minimum number of matching records for a query to run as a Bulk
+     * API job when apiType is bulk. 0 runs every unlimited query as a job.
+     */
+    private int bulkQueryThreshold = 50000;
+
+    /**
+     * The time, in milliseconds, the record count of a query is reused to
+     * compare it with bulkQueryThreshold. 0 counts before every query.
+     */
+    private long bulkQueryCountTtl = 600000;
+
+    /**
+     * The first interval, in milliseconds, between two polls of a Bulk API
+     * job. The interval doubles after each poll up to bulkPollMaxInterval.
+     */
+    private long bulkPollInterval = 1000;
+
+    private long bulkPollMaxInterval = 30000;
+
+    /**
+     * The time, in milliseconds, a Bulk API job may take to complete.
+     */
+    private long bulkQueryTimeout = 1800000;
+
+    /**
+     * The maximum number of records per Bulk API result set.
+     */
+    private int bulkResultPageSize = 50000;
+
+    /**
+     * Use the Composite API to write a user and its password in one request.
+     * Requires a servicePath of version 38.0 or later.
+     */
+    private boolean compositeApiEnabled = false;
+
+    /**
+     * How changes are synchronized (modstamp, replication or streaming) and
+     * how many changed records are fetched per query.
+     */
+    private String syncMode = SYNC_MODE_MODSTAMP;
+    private int syncBatchSize = 200;
+
+    /**
+     * Streaming sync: the channel, the CometD endpoint (relative to the
+     * instance or absolute), the journal capacity and the replay id file.
+     */
+    private String streamingChannel = "/data/UserChangeEvent";
+    private String streamingEndpoint = null;
+    private int streamingJournalSize = 10000;
+    private String streamingReplayFile = null;
+
+    /**
+     * How long the schema is cached (in milliseconds) and where the describes
+     * are stored.
+     */
+    private long schemaCacheTtl = 3600000;
+    private String schemaCacheDirectory = null;
+
+    /**
+     * The sObjects described in the schema and how many are described
+     * concurrently.
+     */
+    private String[] schemaObjects = { "User" };
+    private int describeThreads = 4;
+
+    /**
+     * How many CreatedDate ranges a full reconciliation is split into, and
+     * how many of them are queried concurrently.
+     */
+    private int reconPartitions = 1;
+    private int reconThreads = 4;
+
+    /**
+     * How long in milliseconds a successful request spares checkAlive from
+     * probing the org.
+     */
+    private long aliveFreshness = 30000;
+
+    /**
+     * Attempts of a failed request and the backoff between them (in
+     * milliseconds).
+     */
+    private int retryMaxAttempts = 3;
+    private long retryInitialDelay = 500;
+    private long retryMaxDelay = 30000;
+
+    /**
+     * Session timeout of the org and how long before it the access token is
+     * refreshed (in milliseconds).
+     */
+    private long sessionTimeout = 7200000;
+    private long tokenRefreshSkew = 60000;
+
+    /**
+     * HTTP connection pool and timeouts (in milliseconds).
+     */
+    private int maxConnectionsPerHost = 10;
+    private int maxTotalConnections = 20;
+    private int connectTimeout = 30000;
+    private int readTimeout = 120000;
+    private long idleTimeout = 60000;
+    private long idleCheckInterval = 10000;
+
     /**
      * The Password to authenticate with.
      * <p/>
@@ -132,11 +298,15 @@ public class SalesforceConfiguration extends AbstractConfiguration {
         this.security_token = security_token;
     }
 
-    @ConfigurationProperty(order = 7, displayMessageKey = "API_TYPE_HELP", helpMessageKey = "API_TYPE_HELP")
+    @ConfigurationProperty(order = 7, displayMessageKey = "API_TYPE_DISPLAY", helpMessageKey = "API_TYPE_HELP")
     public String getApiType() {
         return apiType;
     }
 
+    public void setApiType(String apiType) {
+        this.apiType = apiType;
+    }
+
     @ConfigurationProperty(displayMessageKey = "UI_FLAT_UNIQUE_ATTRIBUTE", helpMessageKey = "UI_FLAT_UNIQUE_ATTRIBUTE_HELP", required = true)
     public String getUniqueAttribute() {
         return uniqueAttribute;
@@ -209,6 +379,366 @@ public class SalesforceConfiguration extends AbstractConfiguration {
         return servicePath;
     }
 
+    @ConfigurationProperty(displayMessageKey = "QUERY_BATCH_SIZE_PROPERTY_DISPLAY", helpMessageKey = "QUERY_BATCH_SIZE_PROPERTY_HELP")
+    public int getQueryBatchSize() {
+        return queryBatchSize;
+    }
+
+    public void setQueryBatchSize(int queryBatchSize) {
+        this.queryBatchSize = queryBatchSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "QUERY_PREFETCH_DEPTH_PROPERTY_DISPLAY", helpMessageKey = "QUERY_PREFETCH_DEPTH_PROPERTY_HELP")
+    public int getQueryPrefetchDepth() {
+        return queryPrefetchDepth;
+    }
+
+    public void setQueryPrefetchDepth(int queryPrefetchDepth) {
+        this.queryPrefetchDepth = queryPrefetchDepth;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "QUERY_FAN_OUT_PROPERTY_DISPLAY", helpMessageKey = "QUERY_FAN_OUT_PROPERTY_HELP")
+    public int getQueryFanOut() {
+        return queryFanOut;
+    }
+
+    public void setQueryFanOut(int queryFanOut) {
+        this.queryFanOut = queryFanOut;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "QUERY_ORDERED_PROPERTY_DISPLAY", helpMessageKey = "QUERY_ORDERED_PROPERTY_HELP")
+    public boolean isQueryOrdered() {
+        return queryOrdered;
+    }
+
+    public void setQueryOrdered(boolean queryOrdered) {
+        this.queryOrdered = queryOrdered;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "QUERY_PAGING_MODE_PROPERTY_DISPLAY", helpMessageKey = "QUERY_PAGING_MODE_PROPERTY_HELP")
+    public String getQueryPagingMode() {
+        return queryPagingMode;
+    }
+
+    public void setQueryPagingMode(String queryPagingMode) {
+        this.queryPagingMode = queryPagingMode;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "KEYSET_PAGE_SIZE_PROPERTY_DISPLAY", helpMessageKey = "KEYSET_PAGE_SIZE_PROPERTY_HELP")
+    public int getKeysetPageSize() {
+        return keysetPageSize;
+    }
+
+    public void setKeysetPageSize(int keysetPageSize) {
+        this.keysetPageSize = keysetPageSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "KEYSET_TARGET_TIME_PROPERTY_DISPLAY", helpMessageKey = "KEYSET_TARGET_TIME_PROPERTY_HELP")
+    public long getKeysetTargetTime() {
+        return keysetTargetTime;
+    }
+
+    public void setKeysetTargetTime(long keysetTargetTime) {
+        this.keysetTargetTime = keysetTargetTime;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "RECON_CHECKPOINT_FILE_PROPERTY_DISPLAY", helpMessageKey = "RECON_CHECKPOINT_FILE_PROPERTY_HELP")
+    public String getReconCheckpointFile() {
+        return reconCheckpointFile;
+    }
+
+    public void setReconCheckpointFile(String reconCheckpointFile) {
+        this.reconCheckpointFile = reconCheckpointFile;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "RECON_CHECKPOINT_TTL_PROPERTY_DISPLAY", helpMessageKey = "RECON_CHECKPOINT_TTL_PROPERTY_HELP")
+    public long getReconCheckpointTtl() {
+        return reconCheckpointTtl;
+    }
+
+    public void setReconCheckpointTtl(long reconCheckpointTtl) {
+        this.reconCheckpointTtl = reconCheckpointTtl;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "BULK_QUERY_THRESHOLD_PROPERTY_DISPLAY", helpMessageKey = "BULK_QUERY_THRESHOLD_PROPERTY_HELP")
+    public int getBulkQueryThreshold() {
+        return bulkQueryThreshold;
+    }
+
+    public void setBulkQueryThreshold(int bulkQueryThreshold) {
+        this.bulkQueryThreshold = bulkQueryThreshold;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "BULK_QUERY_COUNT_TTL_PROPERTY_DISPLAY", helpMessageKey = "BULK_QUERY_COUNT_TTL_PROPERTY_HELP")
+    public long getBulkQueryCountTtl() {
+        return bulkQueryCountTtl;
+    }
+
+    public void setBulkQueryCountTtl(long bulkQueryCountTtl) {
+        this.bulkQueryCountTtl = bulkQueryCountTtl;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "BULK_POLL_INTERVAL_PROPERTY_DISPLAY", helpMessageKey = "BULK_POLL_INTERVAL_PROPERTY_HELP")
+    public long getBulkPollInterval() {
+        return bulkPollInterval;
+    }
+
+    public void setBulkPollInterval(long bulkPollInterval) {
+        this.bulkPollInterval = bulkPollInterval;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "BULK_POLL_MAX_INTERVAL_PROPERTY_DISPLAY", helpMessageKey = "BULK_POLL_MAX_INTERVAL_PROPERTY_HELP")
+    public long getBulkPollMaxInterval() {
+        return bulkPollMaxInterval;
+    }
+
+    public void setBulkPollMaxInterval(long bulkPollMaxInterval) {
+        this.bulkPollMaxInterval = bulkPollMaxInterval;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "BULK_QUERY_TIMEOUT_PROPERTY_DISPLAY", helpMessageKey = "BULK_QUERY_TIMEOUT_PROPERTY_HELP")
+    public long getBulkQueryTimeout() {
+        return bulkQueryTimeout;
+    }
+
+    public void setBulkQueryTimeout(long bulkQueryTimeout) {
+        this.bulkQueryTimeout = bulkQueryTimeout;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "BULK_RESULT_PAGE_SIZE_PROPERTY_DISPLAY", helpMessageKey = "BULK_RESULT_PAGE_SIZE_PROPERTY_HELP")
+    public int getBulkResultPageSize() {
+        return bulkResultPageSize;
+    }
+
+    public void setBulkResultPageSize(int bulkResultPageSize) {
+        this.bulkResultPageSize = bulkResultPageSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "COMPOSITE_API_ENABLED_PROPERTY_DISPLAY", helpMessageKey = "COMPOSITE_API_ENABLED_PROPERTY_HELP")
+    public boolean isCompositeApiEnabled() {
+        return compositeApiEnabled;
+    }
+
+    public void setCompositeApiEnabled(boolean compositeApiEnabled) {
+        this.compositeApiEnabled = compositeApiEnabled;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "SYNC_MODE_PROPERTY_DISPLAY", helpMessageKey = "SYNC_MODE_PROPERTY_HELP")
+    public String getSyncMode() {
+        return syncMode;
+    }
+
+    public void setSyncMode(String syncMode) {
+        this.syncMode = syncMode;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "SYNC_BATCH_SIZE_PROPERTY_DISPLAY", helpMessageKey = "SYNC_BATCH_SIZE_PROPERTY_HELP")
+    public int getSyncBatchSize() {
+        return syncBatchSize;
+    }
+
+    public void setSyncBatchSize(int syncBatchSize) {
+        this.syncBatchSize = syncBatchSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "STREAMING_CHANNEL_PROPERTY_DISPLAY", helpMessageKey = "STREAMING_CHANNEL_PROPERTY_HELP")
+    public String getStreamingChannel() {
+        return streamingChannel;
+    }
+
+    public void setStreamingChannel(String streamingChannel) {
+        this.streamingChannel = streamingChannel;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "STREAMING_ENDPOINT_PROPERTY_DISPLAY", helpMessageKey = "STREAMING_ENDPOINT_PROPERTY_HELP")
+    public String getStreamingEndpoint() {
+        return streamingEndpoint;
+    }
+
+    public void setStreamingEndpoint(String streamingEndpoint) {
+        this.streamingEndpoint = streamingEndpoint;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "STREAMING_JOURNAL_SIZE_PROPERTY_DISPLAY", helpMessageKey = "STREAMING_JOURNAL_SIZE_PROPERTY_HELP")
+    public int getStreamingJournalSize() {
+        return streamingJournalSize;
+    }
+
+    public void setStreamingJournalSize(int streamingJournalSize) {
+        this.streamingJournalSize = streamingJournalSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "STREAMING_REPLAY_FILE_PROPERTY_DISPLAY", helpMessageKey = "STREAMING_REPLAY_FILE_PROPERTY_HELP")
+    public String getStreamingReplayFile() {
+        return streamingReplayFile;
+    }
+
+    public void setStreamingReplayFile(String streamingReplayFile) {
+        this.streamingReplayFile = streamingReplayFile;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "SCHEMA_CACHE_TTL_PROPERTY_DISPLAY", helpMessageKey = "SCHEMA_CACHE_TTL_PROPERTY_HELP")
+    public long getSchemaCacheTtl() {
+        return schemaCacheTtl;
+    }
+
+    public void setSchemaCacheTtl(long schemaCacheTtl) {
+        this.schemaCacheTtl = schemaCacheTtl;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "SCHEMA_CACHE_DIRECTORY_PROPERTY_DISPLAY", helpMessageKey = "SCHEMA_CACHE_DIRECTORY_PROPERTY_HELP")
+    public String getSchemaCacheDirectory() {
+        return schemaCacheDirectory;
+    }
+
+    public void setSchemaCacheDirectory(String schemaCacheDirectory) {
+        this.schemaCacheDirectory = schemaCacheDirectory;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "SCHEMA_OBJECTS_PROPERTY_DISPLAY", helpMessageKey = "SCHEMA_OBJECTS_PROPERTY_HELP")
+    public String[] getSchemaObjects() {
+        return schemaObjects;
+    }
+
+    public void setSchemaObjects(String[] schemaObjects) {
+        this.schemaObjects = schemaObjects;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "DESCRIBE_THREADS_PROPERTY_DISPLAY", helpMessageKey = "DESCRIBE_THREADS_PROPERTY_HELP")
+    public int getDescribeThreads() {
+        return describeThreads;
+    }
+
+    public void setDescribeThreads(int describeThreads) {
+        this.describeThreads = describeThreads;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "RECON_PARTITIONS_PROPERTY_DISPLAY", helpMessageKey = "RECON_PARTITIONS_PROPERTY_HELP")
+    public int getReconPartitions() {
+        return reconPartitions;
+    }
+
+    public void setReconPartitions(int reconPartitions) {
+        this.reconPartitions = reconPartitions;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "RECON_THREADS_PROPERTY_DISPLAY", helpMessageKey = "RECON_THREADS_PROPERTY_HELP")
+    public int getReconThreads() {
+        return reconThreads;
+    }
+
+    public void setReconThreads(int reconThreads) {
+        this.reconThreads = reconThreads;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "ALIVE_FRESHNESS_PROPERTY_DISPLAY", helpMessageKey = "ALIVE_FRESHNESS_PROPERTY_HELP")
+    public long getAliveFreshness() {
+        return aliveFreshness;
+    }
+
+    public void setAliveFreshness(long aliveFreshness) {
+        this.aliveFreshness = aliveFreshness;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "RETRY_MAX_ATTEMPTS_PROPERTY_DISPLAY", helpMessageKey = "RETRY_MAX_ATTEMPTS_PROPERTY_HELP")
+    public int getRetryMaxAttempts() {
+        return retryMaxAttempts;
+    }
+
+    public void setRetryMaxAttempts(int retryMaxAttempts) {
+        this.retryMaxAttempts = retryMaxAttempts;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "RETRY_INITIAL_DELAY_PROPERTY_DISPLAY", helpMessageKey = "RETRY_INITIAL_DELAY_PROPERTY_HELP")
+    public long getRetryInitialDelay() {
+        return retryInitialDelay;
+    }
+
+    public void setRetryInitialDelay(long retryInitialDelay) {
+        this.retryInitialDelay = retryInitialDelay;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "RETRY_MAX_DELAY_PROPERTY_DISPLAY", helpMessageKey = "RETRY_MAX_DELAY_PROPERTY_HELP")
+    public long getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    public void setRetryMaxDelay(long retryMaxDelay) {
+        this.retryMaxDelay = retryMaxDelay;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "SESSION_TIMEOUT_PROPERTY_DISPLAY", helpMessageKey = "SESSION_TIMEOUT_PROPERTY_HELP")
+    public long getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    public void setSessionTimeout(long sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "TOKEN_REFRESH_SKEW_PROPERTY_DISPLAY", helpMessageKey = "TOKEN_REFRESH_SKEW_PROPERTY_HELP")
+    public long getTokenRefreshSkew() {
+        return tokenRefreshSkew;
+    }
+
+    public void setTokenRefreshSkew(long tokenRefreshSkew) {
+        this.tokenRefreshSkew = tokenRefreshSkew;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "MAX_CONNECTIONS_PER_HOST_PROPERTY_DISPLAY", helpMessageKey = "MAX_CONNECTIONS_PER_HOST_PROPERTY_HELP")
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "MAX_TOTAL_CONNECTIONS_PROPERTY_DISPLAY", helpMessageKey = "MAX_TOTAL_CONNECTIONS_PROPERTY_HELP")
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "CONNECT_TIMEOUT_PROPERTY_DISPLAY", helpMessageKey = "CONNECT_TIMEOUT_PROPERTY_HELP")
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "READ_TIMEOUT_PROPERTY_DISPLAY", helpMessageKey = "READ_TIMEOUT_PROPERTY_HELP")
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "IDLE_TIMEOUT_PROPERTY_DISPLAY", helpMessageKey = "IDLE_TIMEOUT_PROPERTY_HELP")
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "IDLE_CHECK_INTERVAL_PROPERTY_DISPLAY", helpMessageKey = "IDLE_CHECK_INTERVAL_PROPERTY_HELP")
+    public long getIdleCheckInterval() {
+        return idleCheckInterval;
+    }
+
+    public void setIdleCheckInterval(long idleCheckInterval) {
+        this.idleCheckInterval = idleCheckInterval;
+    }
+
     public String getUserServicePath() {
         return getServicePath() + "/sobjects/User/";
     }
@@ -217,6 +747,71 @@ public class SalesforceConfiguration extends AbstractConfiguration {
         return getServicePath() + "/query/?q=";
     }
 
+    public String getCompositeServicePath() {
+        return getServicePath() + "/composite";
+    }
+
+    /**
+     * @return the major version of the REST API of servicePath, e.g. 27 for
+     *         <code>services/data/v27.0</code>, or 0 if it has none
+     */
+    public int getApiVersion() {
+        String path = getServicePath();
+        int start = path.lastIndexOf("/v");
+        if (start < 0) {
+            return 0;
+        }
+        int end = path.indexOf('.', start);
+        try {
+            return Integer.parseInt(path.substring(start + 2,
+                    end < 0 ? path.length() : end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public String getBulkQueryServicePath() {
+        return getServicePath() + "/jobs/query";
+    }
+
+    public String getBulkIngestServicePath() {
+        return getServicePath() + "/jobs/ingest";
+    }
+
+    /**
+     * Returns the key of the state shared by the connections of the org
+     * user: the login URL, client id and username, and a digest of the
+     * password, client secret and security token so a changed credential
+     * never reuses the state of the previous one.
+     */
+    String getCredentialsKey() {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConnectorException(e);
+        }
+        GuardedString.Accessor accessor = new GuardedString.Accessor() {
+            public void access(char[] clearChars) {
+                digest.update(BigInteger.valueOf(clearChars.length)
+                        .toByteArray());
+                for (char c : clearChars) {
+                    digest.update((byte) (c >> 8));
+                    digest.update((byte) c);
+                }
+            }
+        };
+        for (GuardedString secret : new GuardedString[] { password,
+                clientSecret, security_token }) {
+            digest.update((byte) (secret != null ? 1 : 0));
+            if (secret != null) {
+                secret.access(accessor);
+            }
+        }
+        return getLoginUrl() + "|" + getClientId() + "|" + getUsername() + "|"
+                + new BigInteger(1, digest.digest()).toString(16);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -226,6 +821,131 @@ public class SalesforceConfiguration extends AbstractConfiguration {
         Assertions.blankCheck(username, "username");
         Assertions.nullCheck(password, "password");
         Assertions.blankCheck(apiType, "apiType");
+        if (!API_TYPE_REST.equalsIgnoreCase(apiType)
+                && !API_TYPE_BULK.equalsIgnoreCase(apiType)) {
+            throw new IllegalArgumentException("Unsupported apiType: "
+                    + apiType);
+        }
+        if (API_TYPE_BULK.equalsIgnoreCase(apiType)
+                && getApiVersion() < BULK_API_VERSION) {
+            throw new IllegalArgumentException("apiType " + API_TYPE_BULK
+                    + " requires a servicePath of v" + BULK_API_VERSION
+                    + ".0 or later");
+        }
+        if (compositeApiEnabled && getApiVersion() < COMPOSITE_API_VERSION) {
+            throw new IllegalArgumentException(
+                    "compositeApiEnabled requires a servicePath of v"
+                            + COMPOSITE_API_VERSION + ".0 or later");
+        }
+        if (bulkQueryCountTtl < 0) {
+            throw new IllegalArgumentException(
+                    "bulkQueryCountTtl must not be negative");
+        }
+        if (queryBatchSize < 200 || queryBatchSize > 2000) {
+            throw new IllegalArgumentException(
+                    "queryBatchSize must be between 200 and 2000");
+        }
+        if (queryPrefetchDepth < 0) {
+            throw new IllegalArgumentException(
+                    "queryPrefetchDepth must not be negative");
+        }
+        if (!PAGING_MODE_CURSOR.equalsIgnoreCase(queryPagingMode)
+                && !PAGING_MODE_KEYSET.equalsIgnoreCase(queryPagingMode)) {
+            throw new IllegalArgumentException("queryPagingMode must be "
+                    + PAGING_MODE_CURSOR + " or " + PAGING_MODE_KEYSET);
+        }
+        if (keysetPageSize < 200 || keysetPageSize > 2000) {
+            throw new IllegalArgumentException(
+                    "keysetPageSize must be between 200 and 2000");
+        }
+        if (reconCheckpointTtl <= 0) {
+            throw new IllegalArgumentException(
+                    "reconCheckpointTtl must be greater than 0");
+        }
+        if (keysetTargetTime <= 0) {
+            throw new IllegalArgumentException(
+                    "keysetTargetTime must be greater than 0");
+        }
+        if (queryFanOut <= 0 || queryFanOut > maxConnectionsPerHost) {
+            throw new IllegalArgumentException(
+                    "queryFanOut must be between 1 and maxConnectionsPerHost");
+        }
+        if (!SYNC_MODE_MODSTAMP.equalsIgnoreCase(syncMode)
+                && !SYNC_MODE_REPLICATION.equalsIgnoreCase(syncMode)
+                && !SYNC_MODE_STREAMING.equalsIgnoreCase(syncMode)) {
+            throw new IllegalArgumentException("syncMode must be "
+                    + SYNC_MODE_MODSTAMP + ", " + SYNC_MODE_REPLICATION
+                    + " or " + SYNC_MODE_STREAMING);
+        }
+        if (SYNC_MODE_STREAMING.equalsIgnoreCase(syncMode)
+                && (StringUtil.isBlank(streamingChannel) || streamingJournalSize <= 0)) {
+            throw new IllegalArgumentException(
+                    "streamingChannel and a positive streamingJournalSize are required");
+        }
+        if (syncBatchSize <= 0) {
+            throw new IllegalArgumentException(
+                    "syncBatchSize must be greater than 0");
+        }
+        if (schemaObjects == null || schemaObjects.length == 0) {
+            throw new IllegalArgumentException(
+                    "schemaObjects must not be empty");
+        }
+        if (describeThreads <= 0) {
+            throw new IllegalArgumentException(
+                    "describeThreads must be greater than 0");
+        }
+        if (schemaCacheTtl < 0) {
+            throw new IllegalArgumentException(
+                    "schemaCacheTtl must not be negative");
+        }
+        if (aliveFreshness < 0) {
+            throw new IllegalArgumentException(
+                    "aliveFreshness must not be negative");
+        }
+        if (retryMaxAttempts < 1) {
+            throw new IllegalArgumentException(
+                    "retryMaxAttempts must be at least 1");
+        }
+        if (retryInitialDelay <= 0 || retryMaxDelay < retryInitialDelay) {
+            throw new IllegalArgumentException(
+                    "retryMaxDelay must not be lower than retryInitialDelay");
+        }
+        if (sessionTimeout < 0 || tokenRefreshSkew < 0) {
+            throw new IllegalArgumentException(
+                    "sessionTimeout and tokenRefreshSkew must not be negative");
+        }
+        if (maxConnectionsPerHost <= 0
+                || maxTotalConnections < maxConnectionsPerHost) {
+            throw new IllegalArgumentException(
+                    "maxTotalConnections must not be lower than maxConnectionsPerHost");
+        }
+        if (reconPartitions <= 0) {
+            throw new IllegalArgumentException(
+                    "reconPartitions must be greater than 0");
+        }
+        if (reconThreads <= 0) {
+            throw new IllegalArgumentException(
+                    "reconThreads must be greater than 0");
+        }
+        if (reconPartitions > 1) {
+            // Each range is read by its own query, with its prefetched or
+            // fanned out pages
+            int perRange = 1 + (queryFanOut > 1 ? queryFanOut
+                    : queryPrefetchDepth);
+            if (reconThreads * perRange > maxConnectionsPerHost) {
+                throw new IllegalArgumentException("reconThreads x "
+                        + perRange + " connections per range must not"
+                        + " exceed maxConnectionsPerHost");
+            }
+            if (API_TYPE_BULK.equalsIgnoreCase(apiType)) {
+                throw new IllegalArgumentException(
+                        "reconPartitions must be 1 when apiType is bulk");
+            }
+        }
+        if (bulkPollInterval <= 0 || bulkPollMaxInterval < bulkPollInterval) {
+            throw new IllegalArgumentException(
+                    "bulkPollMaxInterval must not be lower than bulkPollInterval");
+        }
     }
 
     public Form getAuthenticationForm() {
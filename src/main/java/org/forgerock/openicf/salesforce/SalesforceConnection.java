@@ -26,11 +26,13 @@ package org.forgerock.openicf.salesforce;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
-import org.identityconnectors.common.StringUtil;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
 import org.restlet.Client;
@@ -42,12 +44,12 @@ import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.data.Parameter;
 import org.restlet.data.Preference;
-import org.restlet.data.Protocol;
 import org.restlet.data.Reference;
 import org.restlet.data.Status;
-import org.restlet.engine.Engine;
 import org.restlet.engine.http.header.ChallengeWriter;
+import org.restlet.engine.http.header.HeaderConstants;
 import org.restlet.engine.security.AuthenticatorHelper;
+import org.restlet.ext.httpclient.HttpClientHelper;
 import org.restlet.ext.jackson.JacksonRepresentation;
 import org.restlet.representation.EmptyRepresentation;
 import org.restlet.representation.Representation;
@@ -95,38 +97,45 @@ public class SalesforceConnection extends ClientResource {
 
     public static final String SIGNATURE = "signature";
 
+    static final String HTTP_CLIENT_HELPER = "org.restlet.ext.httpclient.HttpClientHelper";
+
     private SalesforceConfiguration configuration;
 
+    /**
+     * The token shared with the other connections of the org user.
+     */
+    private final OAuthTokenStore tokens;
+
+    /**
+     * When the org user was last seen reachable, shared like the token.
+     */
+    private final ConnectionHealth health;
+
+    /**
+     * The token a child was created with, so a 401 can be attributed to a
+     * token generation.
+     */
     private OAuthUser authentication = null;
 
     public SalesforceConnection(SalesforceConnection resource) {
         super(resource);
         this.configuration = resource.configuration;
+        this.tokens = resource.tokens;
+        this.health = resource.health;
+        // Share the pooled transport of the parent connection
+        setNext(resource.getNext());
     }
 
     public SalesforceConnection(SalesforceConfiguration configuration) {
         super(new Context(), configuration.getLoginUrl());
         this.configuration = configuration;
+        this.tokens = OAuthTokenStore.acquire(configuration);
+        this.health = ConnectionHealth.acquire(configuration);
 
-        List<Protocol> p = new ArrayList<Protocol>();
-        p.add(Protocol.HTTPS);
-        // Client client = new Client(getContext(), p ,
-        // "org.restlet.ext.httpclient.HttpClientHelper");
-        Client client = new Client(Protocol.HTTPS);
+        setNext(SalesforceTransport.acquire(configuration));
 
-        String trustStore = this.configuration.getTrustStore();
-        if (StringUtil.isNotEmpty(trustStore)) {
-            Series<Parameter> parameters = getContext().getParameters();
-            parameters.add("truststorePath", trustStore);
-        }
-
-        client.setContext(getContext());
-        setNext(client);
-
-        Engine.getInstance().getRegisteredAuthenticators()
-                .add(new OAuthHelper());
-
-        refreshOAuthToken();
+        // The login happens on first use, unless another connection of the
+        // org user has already logged in
     }
 
     public void test() {
@@ -142,7 +151,85 @@ public class SalesforceConnection extends ClientResource {
         }
     }
 
+    /**
+     * Checks that the org is reachable, reusing the outcome of the requests
+     * that succeeded within aliveFreshness.
+     */
+    public void checkAlive() {
+        health.check(this, configuration.getAliveFreshness());
+    }
+
+    /**
+     * Sends a HEAD request to the service path, the cheapest authenticated
+     * request. An expired access token is refreshed once, as for the other
+     * requests, so it does not report the org unreachable.
+     */
+    void probe() {
+        for (int attempt = 1;; attempt++) {
+            Representation body = null;
+            ClientResource child = null;
+            try {
+                child = getChild(this.configuration.getServicePath());
+                body = child.head();
+                return;
+            } catch (ResourceException e) {
+                if (attempt == 1 && e.getStatus().getCode() == 401) {
+                    log.info("OAuth2 access token may be expired. Do refesh access token.");
+                    refreshOAuthToken(child);
+                    continue;
+                }
+                throw new ConnectionFailedException(e);
+            } catch (ConnectionFailedException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ConnectionFailedException(e);
+            } finally {
+                if (body != null)
+                    body.release();
+            }
+        }
+    }
+
     public void dispose() {
+        if (getNext() instanceof Client) {
+            log.ok("Releasing HTTP connection pool {0}", getPoolStatistics());
+            SalesforceTransport.release((Client) getNext());
+            setNext(null);
+            OAuthTokenStore.release(tokens);
+            ConnectionHealth.release(health);
+        }
+    }
+
+    ConnectionHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * Returns the statistics of the HTTP connection pool.
+     * 
+     * @return connectionsInPool, maxConnectionsPerHost and
+     *         maxTotalConnections, or an empty map if the pooled transport is
+     *         not in use
+     */
+    public Map<String, Object> getPoolStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        if (getNext() instanceof Client
+                && ((Client) getNext()).getHelper() instanceof HttpClientHelper) {
+            HttpClientHelper helper = (HttpClientHelper) ((Client) getNext())
+                    .getHelper();
+            ClientConnectionManager manager = helper.getHttpClient() != null ? helper
+                    .getHttpClient().getConnectionManager() : null;
+            if (manager instanceof ThreadSafeClientConnManager) {
+                statistics.put("connectionsInPool",
+                        ((ThreadSafeClientConnManager) manager)
+                                .getConnectionsInPool());
+            }
+            statistics.put("maxConnectionsPerHost",
+                    configuration.getMaxConnectionsPerHost());
+            statistics.put("maxTotalConnections",
+                    configuration.getMaxTotalConnections());
+        }
+        return statistics;
     }
 
     /**
@@ -153,32 +240,7 @@ public class SalesforceConnection extends ClientResource {
         ClientResource result = null;
 
         if ((relativeRef != null) && relativeRef.isRelative()) {
-            result = new SalesforceConnection(this);
-            result.setReference(new Reference(
-                    authentication.getBaseReference(), relativeRef)
-                    .getTargetRef());
-            // -------------------------------------
-            // Add user-defined extension headers
-            // -------------------------------------
-
-            // Can't append Authorization header with restlet 2.0.15
-            //
-            // Series additionalHeaders = (Series) result.getRequest()
-            // .getAttributes().get(HeaderConstants.ATTRIBUTE_HEADERS);
-            // if (additionalHeaders == null) {
-            // additionalHeaders = new Form();
-            // result.getRequest().getAttributes().put(HeaderConstants.ATTRIBUTE_HEADERS,
-            // additionalHeaders);
-            // }
-            //
-            // additionalHeaders.add(HeaderConstants.HEADER_AUTHORIZATION,
-            // authentication.getAccessToken());
-
-            ChallengeResponse challengeResponse = new ChallengeResponse(
-                    ChallengeScheme.HTTP_OAUTH);
-            challengeResponse.setRawValue(authentication.getAccessToken());
-            result.getRequest().setChallengeResponse(challengeResponse);
-
+            result = createChild(relativeRef);
         } else {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
                     "The child URI is not relative.");
@@ -186,31 +248,152 @@ public class SalesforceConnection extends ClientResource {
         return result;
     }
 
+    /**
+     * Returns a resource sent with the access token. Unlike
+     * {@link #getChild(Reference)} the URI may also be absolute, e.g. the
+     * streaming endpoint of a stand-in server.
+     */
+    public ClientResource getResource(String uri) {
+        return createChild(new Reference(uri));
+    }
+
+    private ClientResource createChild(Reference ref) {
+        OAuthUser token = getValidAuthentication();
+        SalesforceConnection result = new SalesforceConnection(this);
+        result.authentication = token;
+        // Relative references are resolved against the instance URL
+        result.setReference(new Reference(token.getBaseReference(), ref)
+                .getTargetRef());
+        // -------------------------------------
+        // Add user-defined extension headers
+        // -------------------------------------
+
+        // Can't append Authorization header with restlet 2.0.15
+        //
+        // Series additionalHeaders = (Series) result.getRequest()
+        // .getAttributes().get(HeaderConstants.ATTRIBUTE_HEADERS);
+        // if (additionalHeaders == null) {
+        // additionalHeaders = new Form();
+        // result.getRequest().getAttributes().put(HeaderConstants.ATTRIBUTE_HEADERS,
+        // additionalHeaders);
+        // }
+        //
+        // additionalHeaders.add(HeaderConstants.HEADER_AUTHORIZATION,
+        // authentication.getAccessToken());
+
+        ChallengeResponse challengeResponse = new ChallengeResponse(
+                ChallengeScheme.HTTP_OAUTH);
+        challengeResponse.setRawValue(token.getAccessToken());
+        result.getRequest().setChallengeResponse(challengeResponse);
+        return result;
+    }
+
+    /**
+     * Adds an extension header (e.g. Sforce-Query-Options) to the request of
+     * the given resource.
+     * 
+     * @param resource
+     *            the resource to send the header with
+     * @param name
+     *            the header name
+     * @param value
+     *            the header value
+     */
+    static void addHeader(ClientResource resource, String name, String value) {
+        Form additionalHeaders = (Form) resource.getRequestAttributes().get(
+                HeaderConstants.ATTRIBUTE_HEADERS);
+        if (additionalHeaders == null) {
+            additionalHeaders = new Form();
+            resource.getRequestAttributes().put(
+                    HeaderConstants.ATTRIBUTE_HEADERS, additionalHeaders);
+        }
+        additionalHeaders.add(name, value);
+    }
+
+    /**
+     * Returns the current token, logging in first when there is none yet or
+     * when it is about to expire.
+     */
+    private OAuthUser getValidAuthentication() {
+        OAuthUser token = tokens.getToken();
+        if (token == null || token.isExpiring(configuration.getSessionTimeout(),
+                configuration.getTokenRefreshSkew())) {
+            log.ok("OAuth2 access token is missing or about to expire, refreshing it");
+            token = tokens.refresh(token, this);
+        }
+        return token;
+    }
+
+    /**
+     * Unconditionally replaces the current token.
+     */
     public void refreshOAuthToken() {
+        tokens.refresh(tokens.getToken(), this);
+    }
+
+    /**
+     * Replaces the token a failed request was sent with.
+     * <p>
+     * Only one refresh runs at a time; callers waiting for it reuse its result
+     * instead of logging in again.
+     * </p>
+     * 
+     * @param failed
+     *            the resource that was rejected with 401
+     */
+    public void refreshOAuthToken(ClientResource failed) {
+        if (failed instanceof SalesforceConnection) {
+            tokens.refresh(((SalesforceConnection) failed).authentication,
+                    this);
+        } else {
+            refreshOAuthToken();
+        }
+    }
+
+    /**
+     * Logs in with the username-password flow.
+     * 
+     * @return the new token
+     */
+    OAuthUser login() {
+        // Use a dedicated resource so the state shared with the children is
+        // never modified
+        ClientResource login = new ClientResource(getContext(),
+                configuration.getLoginUrl());
+        login.setNext(getNext());
+
         // Accept: application/json
         List<Preference<MediaType>> acceptedMediaTypes = new ArrayList<Preference<MediaType>>(
                 1);
         acceptedMediaTypes.add(new Preference(MediaType.APPLICATION_JSON));
-        getClientInfo().setAcceptedMediaTypes(acceptedMediaTypes);
+        login.getClientInfo().setAcceptedMediaTypes(acceptedMediaTypes);
 
         Form form = configuration.getAuthenticationForm();
         Representation body = null;
 
         try {
-            body = post(form.getWebRepresentation());
+            body = login.post(form.getWebRepresentation());
 
-            if (getStatus().isSuccess()) {
+            OAuthUser token = null;
+            if (login.getStatus().isSuccess()) {
                 if (body instanceof EmptyRepresentation == false) {
-                    authentication = createJson(new JacksonRepresentation<Map>(
-                            body, Map.class));
+                    token = createJson(new JacksonRepresentation<Map>(body,
+                            Map.class));
                 }
             }
+            if (token == null) {
+                throw new ConnectionFailedException("No access token from "
+                        + configuration.getLoginUrl());
+            }
+            return token;
+        } catch (ConnectionFailedException e) {
+            throw e;
         } catch (Exception e) {
             throw new ConnectionFailedException(e);
         } finally {
             if (body != null)
                 body.release();
-            release();
+            login.release();
         }
     }
 
@@ -275,7 +458,7 @@ public class SalesforceConnection extends ClientResource {
         return null;
     }
 
-    class OAuthUser {
+    static class OAuthUser {
 
         private final String id;
         private final Date issued;
@@ -299,12 +482,31 @@ public class SalesforceConnection extends ClientResource {
             return instanceUrl;
         }
 
+        /**
+         * Estimates whether the token expires within the skew, the session
+         * timeout being counted from issued_at.
+         * 
+         * @param sessionTimeout
+         *            the session timeout of the org in milliseconds, 0 if
+         *            unknown
+         * @param skew
+         *            how long before the estimated expiry the token is
+         *            considered expiring
+         */
+        public boolean isExpiring(long sessionTimeout, long skew) {
+            if (issued == null || sessionTimeout <= 0) {
+                return false;
+            }
+            return System.currentTimeMillis() + skew >= issued.getTime()
+                    + sessionTimeout;
+        }
+
         public String getAccessToken() {
             return accessToken;
         }
     }
 
-    class OAuthHelper extends AuthenticatorHelper {
+    static class OAuthHelper extends AuthenticatorHelper {
 
         public OAuthHelper() {
             super(ChallengeScheme.HTTP_OAUTH, true, false);
@@ -24,9 +24,8 @@
  */
 package org.forgerock.openicf.salesforce;
 
-import java.sql.Types;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -68,7 +67,6 @@ import org.identityconnectors.framework.spi.operations.SearchOp;
 import org.identityconnectors.framework.spi.operations.SyncOp;
 import org.identityconnectors.framework.spi.operations.TestOp;
 import org.identityconnectors.framework.spi.operations.UpdateAttributeValuesOp;
-import org.restlet.ext.jackson.JacksonRepresentation;
 import org.restlet.representation.EmptyRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.ClientResource;
@@ -102,6 +100,16 @@ public class SalesforceConnector implements PoolableConnector, AuthenticateOp,
      */
     private SalesforceConfiguration configuration;
 
+    /**
+     * The streaming listeners acquired by this connector, by sObject type.
+     */
+    private final Map<String, StreamingListener> listeners = new HashMap<String, StreamingListener>();
+
+    /**
+     * The schema cache acquired by this connector.
+     */
+    private SchemaCache schemaCache;
+
     /**
      * Gets the Configuration context for this connector.
      */
@@ -116,13 +124,17 @@ public class SalesforceConnector implements PoolableConnector, AuthenticateOp,
      */
     public void init(Configuration configuration) {
         this.configuration = (SalesforceConfiguration) configuration;
-        String apiType = this.configuration.getApiType();
         this.connection = new SalesforceConnection(this.configuration);
+        this.schemaCache = SchemaCache.acquire(this.configuration);
     }
 
-    protected void refreshAccessToken() {
+    /**
+     * @param failed
+     *            the resource that was rejected with 401
+     */
+    protected void refreshAccessToken(ClientResource failed) {
         log.info("OAuth2 access token may be expired. Do refesh access token.");
-        this.connection.refreshOAuthToken();
+        this.connection.refreshOAuthToken(failed);
     }
 
     /**
@@ -132,14 +144,52 @@ public class SalesforceConnector implements PoolableConnector, AuthenticateOp,
      */
     public void dispose() {
         configuration = null;
+        synchronized (listeners) {
+            for (StreamingListener listener : listeners.values()) {
+                StreamingListener.release(listener);
+            }
+            listeners.clear();
+        }
+        if (schemaCache != null) {
+            SchemaCache.release(schemaCache);
+            schemaCache = null;
+        }
         if (connection != null) {
+            connection.dispose();
             connection.release();
             connection = null;
         }
     }
 
+    /**
+     * Returns the streaming listener of the sObject type, acquiring it on
+     * first use. It is released when this connector is disposed.
+     *
+     * @param replayFrom
+     *            where a new listener starts when no replay id has been
+     *            persisted
+     */
+    StreamingListener getStreamingListener(String type, long replayFrom) {
+        synchronized (listeners) {
+            StreamingListener listener = listeners.get(type);
+            if (listener == null) {
+                listener = StreamingListener.acquire(configuration, type,
+                        replayFrom);
+                listeners.put(type, listener);
+            }
+            return listener;
+        }
+    }
+
+    /**
+     * Returns the schema cache acquired by this connector.
+     */
+    SchemaCache getSchemaCache() {
+        return schemaCache;
+    }
+
     public void checkAlive() {
-        connection.test();
+        connection.checkAlive();
     }
 
     /******************
@@ -225,58 +275,9 @@ public class SalesforceConnector implements PoolableConnector, AuthenticateOp,
      * {@inheritDoc}
      */
     public Schema schema() {
-        JacksonRepresentation<Map> body = null;
-        SchemaBuilder schemaBuilder = new SchemaBuilder(
-                SalesforceConnector.class);
-        try {
-            body = new JacksonRepresentation<Map>(connection.getChild(
-                    "/services/data/v20.0/sobjects/").get(), Map.class);
-            Object o = body.getObject();
-            System.out.println(o);
-            body.release();
-            if (o instanceof Map) {
-                List<Map<String, Object>> sobjects = (List<Map<String, Object>>) ((Map) o)
-                        .get("sobjects");
-                if (null != sobjects) {
-                    for (Map<String, Object> sobject : sobjects) {
-                        Object urls = sobject.get("urls");
-                        if (urls instanceof Map) {
-                            Object describe = ((Map) urls).get("describe");
-                            System.out.println(describe);
-                            if (describe instanceof String
-                                    && ((String) describe).contains("/User/")) {
-                                body = new JacksonRepresentation<Map>(
-                                        connection.getChild((String) describe)
-                                                .get(), Map.class);
-                                /*
-                                 * File root = new
-                                 * File(SalesforceConnector.class
-                                 * .getResource("/").toURI().resolve("cache/"));
-                                 * root = new File(root, ((String) describe));
-                                 * root.mkdirs(); FileOutputStream out = new
-                                 * FileOutputStream(new File(root,"GET.json"));
-                                 * body.write(out);
-                                 */
-                                Object so = body.getObject();
-                                body.release();
-                                if (so instanceof Map) {
-                                    SalesforceAttributeUtils.parseDescribe(
-                                            (Map) so, schemaBuilder);
-                                }
-
-                            }
-                        }
-                    }
-                } else {
-                    log.error("/services/data/v24.0/sobjects/sobjects is null");
-                }
-            }
-        } finally {
-            if (null != body) {
-                body.release();
-            }
-        }
-        return schemaBuilder.build();
+        return schemaCache.getSchema(
+                new SalesforceUserOp(this),
+                Arrays.asList(configuration.getSchemaObjects()));
     }
 
     /**
@@ -284,6 +285,12 @@ public class SalesforceConnector implements PoolableConnector, AuthenticateOp,
      */
     public Object runScriptOnConnector(ScriptContext request,
             OperationOptions options) {
+        if (SalesforceBulkIngest.SCRIPT_LANGUAGE.equalsIgnoreCase(request
+                .getScriptLanguage())) {
+            SalesforceUserOp userOp = new SalesforceUserOp(this);
+            return new SalesforceBulkIngest(userOp, configuration)
+                    .execute(request);
+        }
         throw new UnsupportedOperationException();
     }
 
@@ -329,16 +336,64 @@ public class SalesforceConnector implements PoolableConnector, AuthenticateOp,
      */
     public void sync(ObjectClass objectClass, SyncToken token,
             SyncResultsHandler handler, final OperationOptions options) {
-        throw new UnsupportedOperationException();
+        if (isSyncMode(SalesforceConfiguration.SYNC_MODE_STREAMING)) {
+            new SalesforceStreamingSync(new SalesforceUserOp(this),
+                    configuration, objectClass, getSObjectType(objectClass))
+                    .sync(token, handler, options);
+        } else if (isSyncMode(SalesforceConfiguration.SYNC_MODE_REPLICATION)) {
+            new SalesforceReplicationSync(new SalesforceUserOp(this),
+                    configuration, objectClass, getSObjectType(objectClass))
+                    .sync(token, handler, options);
+        } else if (ObjectClass.ACCOUNT.equals(objectClass)) {
+            new SalesforceSyncOp(new SalesforceUserOp(this), configuration)
+                    .sync(token, handler, options);
+        } else {
+            throw new UnsupportedOperationException();
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     public SyncToken getLatestSyncToken(ObjectClass objectClass) {
+        if (isSyncMode(SalesforceConfiguration.SYNC_MODE_STREAMING)) {
+            return new SalesforceStreamingSync(new SalesforceUserOp(this),
+                    configuration, objectClass, getSObjectType(objectClass))
+                    .getLatestSyncToken();
+        } else if (isSyncMode(SalesforceConfiguration.SYNC_MODE_REPLICATION)) {
+            return new SalesforceReplicationSync(new SalesforceUserOp(this),
+                    configuration, objectClass, getSObjectType(objectClass))
+                    .getLatestSyncToken();
+        } else if (ObjectClass.ACCOUNT.equals(objectClass)) {
+            return new SalesforceSyncOp(new SalesforceUserOp(this),
+                    configuration).getLatestSyncToken();
+        }
         throw new UnsupportedOperationException();
     }
 
+    private boolean isSyncMode(String syncMode) {
+        return syncMode.equalsIgnoreCase(configuration.getSyncMode());
+    }
+
+    /**
+     * Maps an object class to its sObject: User, Group or one of the
+     * schemaObjects.
+     */
+    private String getSObjectType(ObjectClass objectClass) {
+        if (ObjectClass.ACCOUNT.equals(objectClass)) {
+            return "User";
+        } else if (ObjectClass.GROUP.equals(objectClass)) {
+            return "Group";
+        }
+        for (String sobject : configuration.getSchemaObjects()) {
+            if (sobject.equalsIgnoreCase(objectClass.getObjectClassValue())) {
+                return sobject;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported Object Class="
+                + objectClass.getObjectClassValue());
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -386,9 +441,23 @@ public class SalesforceConnector implements PoolableConnector, AuthenticateOp,
         return attributeName;
     }
 
+    /**
+     * Returns the SOQL type of a User field, from the cached describe.
+     * 
+     * @throws RuntimeException
+     *             if User can not be described
+     */
     public Integer getColumnType(String columnName) {
-        // TODO implements SOQL type
-        return Types.VARCHAR;
+        return SalesforceAttributeUtils.getSoqlType(schemaCache.getDescribe(
+                new SalesforceUserOp(this), "User"), columnName);
+    }
+
+    /**
+     * Returns the statistics of the HTTP connection pool of this connector.
+     */
+    public Map<String, Object> getPoolStatistics() {
+        return connection != null ? connection.getPoolStatistics()
+                : new HashMap<String, Object>();
     }
 
     SalesforceConnection getConnection() {
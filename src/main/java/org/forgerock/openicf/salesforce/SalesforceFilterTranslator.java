@@ -22,10 +22,16 @@
  */
 package org.forgerock.openicf.salesforce;
 
+import java.sql.Types;
+
+import org.identityconnectors.common.logging.Log;
+
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
 import org.identityconnectors.framework.common.objects.filter.ContainsFilter;
 import org.identityconnectors.framework.common.objects.filter.EndsWithFilter;
@@ -47,10 +53,18 @@ import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
 public class SalesforceFilterTranslator extends
         AbstractFilterTranslator<FilterWhereBuilder> {
 
+    private static final Log log = Log.getLog(SalesforceFilterTranslator.class);
+
     ObjectClass oclass;
     OperationOptions options;
     SalesforceConnector connector;
 
+    /**
+     * Set once the describe failed, so the other attributes of the filter do
+     * not retry it.
+     */
+    private boolean describeFailed;
+
     /**
      * DatabaseFilterTranslator translate filters to database WHERE clause
      * 
@@ -112,6 +126,9 @@ public class SalesforceFilterTranslator extends
             return ret;
         }
         ret.addBind(param, "=");
+        if (!not && (attribute.is(Uid.NAME) || attribute.is(Name.NAME))) {
+            ret.setSingleResult(true);
+        }
         return ret;
     }
 
@@ -142,7 +159,7 @@ public class SalesforceFilterTranslator extends
         if (!value.endsWith("%")) {
             value = value + "%";
         }
-        ret.addBind(new SOQLParam(param.getName(), value, param.getsoqlType()),
+        ret.addBind(new SOQLParam(param.getName(), value, Types.VARCHAR),
                 "LIKE");
         return ret;
     }
@@ -171,7 +188,7 @@ public class SalesforceFilterTranslator extends
         if (!value.startsWith("%")) {
             value = "%" + value;
         }
-        ret.addBind(new SOQLParam(param.getName(), value, param.getsoqlType()),
+        ret.addBind(new SOQLParam(param.getName(), value, Types.VARCHAR),
                 "LIKE");
         return ret;
     }
@@ -200,7 +217,7 @@ public class SalesforceFilterTranslator extends
         if (!value.endsWith("%")) {
             value = value + "%";
         }
-        ret.addBind(new SOQLParam(param.getName(), value, param.getsoqlType()),
+        ret.addBind(new SOQLParam(param.getName(), value, Types.VARCHAR),
                 "LIKE");
         return ret;
     }
@@ -292,10 +309,23 @@ public class SalesforceFilterTranslator extends
             OperationOptions options) {
         final Object value = AttributeUtil.getSingleValue(attribute);
         final String columnName = connector.getColumnName(attribute.getName());
-        final Integer columnType = connector.getColumnType(columnName);
+        final Integer columnType = getColumnType(columnName);
         return new SOQLParam(columnName, value, columnType);
     }
 
+    private Integer getColumnType(String columnName) {
+        if (!describeFailed) {
+            try {
+                return connector.getColumnType(columnName);
+            } catch (RuntimeException e) {
+                log.warn(e, "Failed to describe User, the filter attributes"
+                        + " are compared as text");
+                describeFailed = true;
+            }
+        }
+        return Types.VARCHAR;
+    }
+
     /**
      * Validate the attribute to supported search types
      * 
@@ -303,8 +333,8 @@ public class SalesforceFilterTranslator extends
      */
     protected boolean validateSearchAttribute(final Attribute attribute) {
         // Ignore streamed ( byte[] objects ) from query
-        if (byte[].class.equals(AttributeUtil.getSingleValue(attribute)
-                .getClass())) {
+        Object value = AttributeUtil.getSingleValue(attribute);
+        if (value != null && byte[].class.equals(value.getClass())) {
             return false;
         }
         // Otherwise let the database process
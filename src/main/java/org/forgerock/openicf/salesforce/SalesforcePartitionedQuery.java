@@ -0,0 +1,428 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.restlet.data.Reference;
+import org.restlet.ext.jackson.JacksonRepresentation;
+import org.restlet.representation.Representation;
+
+/**
+ * Full reconciliation split into reconPartitions disjoint CreatedDate
+ * ranges, queried reconThreads at a time.
+ * <p>
+ * The ranges hold about as many users each: their boundaries are placed
+ * from the user count per month and, where a boundary falls, per day, read
+ * with aggregate queries. A day is the finest granularity, so the users
+ * created on a single day, e.g. by a bulk import, are never split. The
+ * first range is open at the start and the last one at the end, so a
+ * user created during the reconciliation is still read. Records reach the
+ * handler one at a time, in no particular order; once it returns false the
+ * other ranges stop at their next record.
+ * </p>
+ * <p>
+ * With a reconCheckpointFile and the keyset queryPagingMode, the boundaries
+ * are saved there with the ranges done, so a reconciliation interrupted by a
+ * restart reads the same ranges again, skips the ones done and resumes the
+ * others from their own checkpoints. A reconciliation that completes, or
+ * that the handler stops, starts over the next time. In cursor mode the
+ * ranges are computed again and always read in full.
+ * </p>
+ */
+class SalesforcePartitionedQuery {
+
+    private static final Log log = Log.getLog(SalesforcePartitionedQuery.class);
+
+    private static final String CREATED_DATE = "CreatedDate";
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    /** The date functions of SOQL group by UTC dates. */
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "salesforce-recon");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final SalesforceUserOp userOp;
+
+    private final SalesforceConfiguration configuration;
+
+    SalesforcePartitionedQuery(SalesforceUserOp userOp,
+            SalesforceConfiguration configuration) {
+        this.userOp = userOp;
+        this.configuration = configuration;
+    }
+
+    public void executeQuery(final ResultsHandler handler,
+            final OperationOptions options) {
+        int partitions = configuration.getReconPartitions();
+
+        // Only keyset paging resumes within a range. Resuming needs the
+        // same ranges, so their boundaries are saved with the ranges done.
+        final ReconCheckpoints checkpoints = SalesforceConfiguration.PAGING_MODE_KEYSET
+                .equalsIgnoreCase(configuration.getQueryPagingMode()) ? ReconCheckpoints
+                .getInstance(configuration)
+                : null;
+        final String checkpoint = checkpoints != null ? ReconCheckpoints
+                .getKey(configuration, "partitions:" + partitions) : null;
+        final Set<Integer> done = new TreeSet<Integer>();
+        List<Long> saved = checkpoint != null ? parse(checkpoints
+                .get(checkpoint), done) : null;
+        if (saved != null) {
+            log.info("Resuming the reconciliation, {0} ranges done", done
+                    .size());
+        } else {
+            saved = getBounds(partitions);
+            if (checkpoint != null && !saved.isEmpty()) {
+                checkpoints.put(checkpoint, format(saved, done));
+            }
+        }
+        final List<Long> bounds = saved;
+        List<FilterWhereBuilder> ranges = getRanges(bounds);
+        log.info("Reconciliation in {0} ranges", ranges.size());
+        if (ranges.size() <= done.size()) {
+            if (checkpoint != null) {
+                checkpoints.remove(checkpoint);
+            }
+            return;
+        }
+
+        // The single point the ranges deliver through
+        final boolean[] proceed = new boolean[] { true };
+        final ResultsHandler serialized = new ResultsHandler() {
+            public boolean handle(ConnectorObject obj) {
+                synchronized (proceed) {
+                    return proceed[0] && (proceed[0] = handler.handle(obj));
+                }
+            }
+        };
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                configuration.getReconThreads(), ranges.size() - done.size()),
+                DAEMON_THREADS);
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                if (done.contains(i)) {
+                    continue;
+                }
+                final int index = i;
+                final FilterWhereBuilder range = ranges.get(i);
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        userOp.executeQuery(range, serialized, options);
+                        if (checkpoint != null) {
+                            synchronized (proceed) {
+                                if (proceed[0]) {
+                                    done.add(index);
+                                    checkpoints.put(checkpoint, format(
+                                            bounds, done));
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                get(future);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // Completed or stopped on purpose, the next run starts over
+        if (checkpoint != null) {
+            checkpoints.remove(checkpoint);
+        }
+    }
+
+    /**
+     * Splits the users into the given number of CreatedDate ranges holding
+     * about as many users each.
+     * 
+     * @return the start of the first month with users followed by the
+     *         boundaries between the ranges, or nothing if there are no users
+     */
+    private List<Long> getBounds(int partitions) {
+        SortedMap<Long, Long> months = getHistogram("CALENDAR_YEAR("
+                + CREATED_DATE + "),CALENDAR_MONTH(" + CREATED_DATE + ")", "");
+        if (months.isEmpty()) {
+            return new ArrayList<Long>();
+        }
+        return getBoundaries(months, partitions);
+    }
+
+    private static List<FilterWhereBuilder> getRanges(List<Long> bounds) {
+        List<FilterWhereBuilder> ranges = new ArrayList<FilterWhereBuilder>();
+        if (bounds.isEmpty()) {
+            // No users
+            return ranges;
+        }
+        FilterWhereBuilder previous = null;
+        for (Long boundary : bounds.subList(1, bounds.size())) {
+            FilterWhereBuilder range = bind(new Date(boundary), "<");
+            if (previous != null) {
+                FilterWhereBuilder both = new FilterWhereBuilder();
+                both.join("AND", previous, range);
+                range = both;
+            }
+            ranges.add(range);
+            previous = bind(new Date(boundary), ">=");
+        }
+        // The last range is open at the end; a single range still needs a
+        // condition
+        ranges.add(previous != null ? previous : bind(new Date(bounds.get(0)),
+                ">="));
+        return ranges;
+    }
+
+    /**
+     * Saves the bounds and the indexes of the ranges done as
+     * "first,boundary,...|index,...".
+     */
+    private static String format(List<Long> bounds, Set<Integer> done) {
+        StringBuilder value = new StringBuilder();
+        for (Long bound : bounds) {
+            value.append(value.length() > 0 ? "," : "").append(bound);
+        }
+        value.append('|');
+        String separator = "";
+        for (Integer index : done) {
+            value.append(separator).append(index);
+            separator = ",";
+        }
+        return value.toString();
+    }
+
+    /**
+     * Reads a value saved by {@link #format(List, Set)}, adding the ranges
+     * done to the given set.
+     * 
+     * @return the bounds, or null if there is none to resume
+     */
+    private static List<Long> parse(String value, Set<Integer> done) {
+        if (value == null) {
+            return null;
+        }
+        int bar = value.indexOf('|');
+        try {
+            List<Long> bounds = new ArrayList<Long>();
+            for (String bound : value.substring(0, bar).split(",")) {
+                bounds.add(Long.valueOf(bound));
+            }
+            for (String index : value.substring(bar + 1).split(",")) {
+                if (index.length() > 0) {
+                    done.add(Integer.valueOf(index));
+                }
+            }
+            return bounds;
+        } catch (RuntimeException e) {
+            log.warn("Unexpected partition checkpoint {0}", value);
+            done.clear();
+            return null;
+        }
+    }
+
+    /**
+     * Places the boundaries where the cumulated user count reaches each
+     * fraction of the total: first by month, then by day within the months
+     * a boundary falls in. A day is the finest granularity, so a day holding
+     * more users than a range gets a range of its own, larger than the
+     * others.
+     * 
+     * @return the start of the first month followed by the boundaries
+     */
+    private List<Long> getBoundaries(SortedMap<Long, Long> months,
+            int partitions) {
+        long total = 0;
+        for (Long count : months.values()) {
+            total += count;
+        }
+        List<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(months.firstKey());
+        long before = 0;
+        int k = 1;
+        for (Map.Entry<Long, Long> month : months.entrySet()) {
+            long count = month.getValue();
+            SortedMap<Long, Long> days = null;
+            while (k < partitions && before + count >= total * k / partitions) {
+                if (days == null) {
+                    days = getDays(month.getKey());
+                }
+                long target = total * k / partitions;
+                long boundary = getBoundary(days, before, target,
+                        nextMonth(month.getKey()));
+                if (boundary > boundaries.get(boundaries.size() - 1)) {
+                    boundaries.add(boundary);
+                }
+                k++;
+            }
+            before += count;
+        }
+        return boundaries;
+    }
+
+    /**
+     * @return the start of the day closest to where the cumulated count
+     *         reaches the target
+     */
+    private static long getBoundary(SortedMap<Long, Long> days, long before,
+            long target, long end) {
+        long cumulated = before;
+        for (Map.Entry<Long, Long> day : days.entrySet()) {
+            long count = day.getValue();
+            if (cumulated + count >= target) {
+                return target - cumulated < cumulated + count - target ? day
+                        .getKey() : day.getKey() + DAY;
+            }
+            cumulated += count;
+        }
+        return end;
+    }
+
+    /**
+     * @return the user count of each day of the month starting at the given
+     *         time
+     */
+    private SortedMap<Long, Long> getDays(long month) {
+        SortedMap<Long, Long> byDay = getHistogram("DAY_IN_MONTH("
+                + CREATED_DATE + ")", " WHERE " + CREATED_DATE + " >= "
+                + formatSoql(month) + " AND " + CREATED_DATE + " < "
+                + formatSoql(nextMonth(month)));
+        SortedMap<Long, Long> days = new TreeMap<Long, Long>();
+        for (Map.Entry<Long, Long> day : byDay.entrySet()) {
+            days.put(month + (day.getKey() - 1) * DAY, day.getValue());
+        }
+        return days;
+    }
+
+    /**
+     * Counts the users grouped by one or two date functions of CreatedDate,
+     * with one aggregate query.
+     * 
+     * @return the count by year and month start (UTC), or by day in month
+     */
+    private SortedMap<Long, Long> getHistogram(String groups, String where) {
+        final Map[] result = new Map[1];
+        userOp.doGet(configuration.getQueryServicePath()
+                + Reference.encode("SELECT " + groups + ",COUNT(Id) FROM User"
+                        + where + " GROUP BY " + groups),
+                new SalesforceUserOp.Callback() {
+                    public void call(Representation body) {
+                        result[0] = new JacksonRepresentation<Map>(body,
+                                Map.class).getObject();
+                    }
+                }, null);
+
+        SortedMap<Long, Long> histogram = new TreeMap<Long, Long>();
+        List records = result[0] != null ? (List) result[0].get("records")
+                : null;
+        if (records == null) {
+            return histogram;
+        }
+        boolean monthly = groups.indexOf(',') > 0;
+        for (Object record : records) {
+            Map values = (Map) record;
+            long key;
+            if (monthly) {
+                Calendar calendar = Calendar.getInstance(UTC);
+                calendar.clear();
+                calendar.set(((Number) values.get("expr0")).intValue(),
+                        ((Number) values.get("expr1")).intValue() - 1, 1);
+                key = calendar.getTimeInMillis();
+            } else {
+                key = ((Number) values.get("expr0")).longValue();
+            }
+            histogram.put(key, ((Number) values.get(monthly ? "expr2"
+                    : "expr1")).longValue());
+        }
+        return histogram;
+    }
+
+    private static long nextMonth(long month) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTimeInMillis(month);
+        calendar.add(Calendar.MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static String formatSoql(long time) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(UTC);
+        return format.format(new Date(time));
+    }
+
+    private static FilterWhereBuilder bind(Date boundary, String operator) {
+        FilterWhereBuilder range = new FilterWhereBuilder();
+        range.addBind(new SOQLParam(CREATED_DATE, boundary, Types.TIMESTAMP),
+                operator);
+        return range;
+    }
+
+    private void get(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted during reconciliation",
+                    e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorException(e.getCause());
+        }
+    }
+}
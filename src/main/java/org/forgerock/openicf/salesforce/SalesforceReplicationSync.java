@@ -0,0 +1,267 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.restlet.data.Reference;
+import org.restlet.ext.jackson.JacksonRepresentation;
+import org.restlet.representation.Representation;
+
+/**
+ * Sync based on the replication resources
+ * <code>sobjects/{type}/updated</code> and
+ * <code>sobjects/{type}/deleted</code>.
+ * <p>
+ * The token is the <code>latestDateCovered</code> of the last window. A
+ * sync reads the Ids updated and deleted between the token and now, fetches
+ * the updated records syncBatchSize at a time and delivers them, followed by
+ * a DELETE delta for each deleted Id. Only the last delta of a window
+ * carries its new watermark, so a sync stopped by the handler replays the
+ * window instead of losing part of it.
+ * </p>
+ * <p>
+ * A window without any change has no delta to carry its watermark: the
+ * framework only takes a new token from a delta. The watermark is then kept
+ * in the process for the token the sync was called with, and the next sync
+ * with that token starts from it instead of reading the covered window
+ * again.
+ * </p>
+ * <p>
+ * Salesforce keeps the replication data for 30 days: a token older than
+ * that, or no token, starts from the oldest available window.
+ * </p>
+ */
+class SalesforceReplicationSync {
+
+    private static final long MAX_WINDOW = 30L * 24 * 60 * 60 * 1000 - 60000;
+
+    /**
+     * The token and the watermark covered from it without any delta, by org
+     * user and sObject type.
+     */
+    private static final Map<String, String[]> coverage = new HashMap<String, String[]>();
+
+    private final SalesforceUserOp userOp;
+
+    private final SalesforceConfiguration configuration;
+
+    private final ObjectClass objectClass;
+
+    private final String type;
+
+    SalesforceReplicationSync(SalesforceUserOp userOp,
+            SalesforceConfiguration configuration, ObjectClass objectClass,
+            String type) {
+        this.userOp = userOp;
+        this.configuration = configuration;
+        this.objectClass = objectClass;
+        this.type = type;
+    }
+
+    public void sync(SyncToken token, SyncResultsHandler handler,
+            OperationOptions options) {
+        Date end = new Date();
+        String coverageKey = configuration.getCredentialsKey() + "|" + type;
+        String from = token != null ? String.valueOf(token.getValue()) : null;
+        String resumed = getCoverage(coverageKey, from);
+        Date start = resumed != null ? parse(resumed)
+                : from != null ? parse(from) : null;
+        if (start == null || end.getTime() - start.getTime() > MAX_WINDOW) {
+            start = new Date(end.getTime() - MAX_WINDOW);
+        }
+        if (end.getTime() - start.getTime() < 60000) {
+            // The replication resources require a window of one minute
+            return;
+        }
+
+        Map updated = getWindow("updated", start, end);
+        Map deleted = getWindow("deleted", start, end);
+
+        // The window both resources are complete for
+        String covered = min((String) updated.get("latestDateCovered"),
+                (String) deleted.get("latestDateCovered"));
+        SyncToken previous = resumed != null ? new SyncToken(resumed)
+                : token != null ? token : new SyncToken(format(start));
+        SyncToken next = covered != null ? new SyncToken(
+                SalesforceSyncOp.toSoqlDateTime(covered)) : previous;
+
+        Set<String> deletedIds = new LinkedHashSet<String>();
+        if (deleted.get("deletedRecords") instanceof List) {
+            for (Object record : (List) deleted.get("deletedRecords")) {
+                if (record instanceof Map && ((Map) record).get("id") != null) {
+                    deletedIds.add((String) ((Map) record).get("id"));
+                }
+            }
+        }
+        List<String> updatedIds = new ArrayList<String>();
+        if (updated.get("ids") instanceof List) {
+            for (Object id : (List) updated.get("ids")) {
+                if (!deletedIds.contains(id)) {
+                    updatedIds.add((String) id);
+                }
+            }
+        }
+
+        // Each delta is handed over once the next one is known, so the last
+        // one delivered carries the watermark even when fewer records than
+        // Ids could be fetched
+        SyncDeltaBuilder last = null;
+        int batchSize = configuration.getSyncBatchSize();
+        for (int i = 0; i < updatedIds.size(); i += batchSize) {
+            for (ConnectorObject record : userOp.fetchRecords(objectClass,
+                    type, updatedIds.subList(i, Math.min(i + batchSize,
+                            updatedIds.size())), options)) {
+                SyncDeltaBuilder builder = new SyncDeltaBuilder();
+                builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+                builder.setUid(record.getUid());
+                builder.setObject(record);
+                if (last != null && !handle(handler, last, previous)) {
+                    return;
+                }
+                last = builder;
+            }
+        }
+        for (String id : deletedIds) {
+            SyncDeltaBuilder builder = new SyncDeltaBuilder();
+            builder.setDeltaType(SyncDeltaType.DELETE);
+            builder.setUid(new Uid(id));
+            if (last != null && !handle(handler, last, previous)) {
+                return;
+            }
+            last = builder;
+        }
+        if (last != null) {
+            handle(handler, last, next);
+        } else if (next != previous) {
+            setCoverage(coverageKey, from, (String) next.getValue());
+        }
+    }
+
+    private static boolean handle(SyncResultsHandler handler,
+            SyncDeltaBuilder builder, SyncToken token) {
+        builder.setToken(token);
+        return handler.handle(builder.build());
+    }
+
+    /**
+     * @return the watermark a sync from the token has covered without any
+     *         delta, or null
+     */
+    private static String getCoverage(String key, String from) {
+        synchronized (coverage) {
+            String[] entry = coverage.get(key);
+            return entry != null && String.valueOf(from).equals(entry[0])
+                    ? entry[1] : null;
+        }
+    }
+
+    private static void setCoverage(String key, String from, String covered) {
+        synchronized (coverage) {
+            coverage.put(key, new String[] { String.valueOf(from), covered });
+        }
+    }
+
+    /**
+     * @return the current time, rounded to the minute like the windows
+     */
+    public SyncToken getLatestSyncToken() {
+        long now = System.currentTimeMillis();
+        return new SyncToken(format(new Date(now - now % 60000)));
+    }
+
+    private Map getWindow(String resource, Date start, Date end) {
+        final Map[] window = new Map[1];
+        userOp.doGet(configuration.getServicePath() + "/sobjects/" + type
+                + "/" + resource + "/?start=" + Reference.encode(format(start))
+                + "&end=" + Reference.encode(format(end)),
+                new SalesforceUserOp.Callback() {
+                    public void call(Representation body) {
+                        window[0] = new JacksonRepresentation<Map>(body,
+                                Map.class).getObject();
+                    }
+                }, null);
+        if (window[0] == null) {
+            throw new ConnectorException("No " + resource + " window for "
+                    + type);
+        }
+        return window[0];
+    }
+
+    private static String min(String a, String b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        Date da = parseRest(a);
+        Date db = parseRest(b);
+        return da == null || db == null || !db.before(da) ? a : b;
+    }
+
+    private static SimpleDateFormat utc(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    private static String format(Date date) {
+        return utc("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").format(date);
+    }
+
+    private static Date parse(String token) {
+        try {
+            return utc("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").parse(token);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid sync token: " + token);
+        }
+    }
+
+    private static Date parseRest(String value) {
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+                    .parse(value);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * Sync from the journal of the {@link StreamingListener} of the sObject
+ * type.
+ * <p>
+ * The token is the replay id of the last delivered event. Events are taken
+ * from the journal syncBatchSize at a time; the current state of the
+ * created and updated records is read with one query per batch, deletions
+ * become DELETE deltas. An event leaves the journal, and its replay id is
+ * persisted, only once all its deltas have been handled. A sync therefore
+ * costs no API call at all when nothing has changed.
+ * </p>
+ */
+class SalesforceStreamingSync {
+
+    private static final Log log = Log.getLog(SalesforceStreamingSync.class);
+
+    private final SalesforceUserOp userOp;
+
+    private final SalesforceConfiguration configuration;
+
+    private final ObjectClass objectClass;
+
+    private final String type;
+
+    SalesforceStreamingSync(SalesforceUserOp userOp,
+            SalesforceConfiguration configuration, ObjectClass objectClass,
+            String type) {
+        this.userOp = userOp;
+        this.configuration = configuration;
+        this.objectClass = objectClass;
+        this.type = type;
+    }
+
+    public void sync(SyncToken token, SyncResultsHandler handler,
+            OperationOptions options) {
+        long after = toReplayId(token);
+        StreamingListener listener = userOp.getStreamingListener(type, after);
+
+        synchronized (listener) {
+            List<StreamingListener.Event> events;
+            while (!(events = listener.peek(configuration.getSyncBatchSize()))
+                    .isEmpty()) {
+                Map<String, ConnectorObject> records = fetch(events, options);
+
+                for (StreamingListener.Event event : events) {
+                    if (event.getReplayId() > after
+                            && !deliver(event, records, handler)) {
+                        return;
+                    }
+                    listener.acknowledge(event);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the replay id of the last received event
+     */
+    public SyncToken getLatestSyncToken() {
+        return new SyncToken(userOp.getStreamingListener(type,
+                StreamingListener.REPLAY_NEW).getLastReceived());
+    }
+
+    private boolean deliver(StreamingListener.Event event,
+            Map<String, ConnectorObject> records, SyncResultsHandler handler) {
+        SyncToken token = new SyncToken(event.getReplayId());
+        for (String id : event.getRecordIds()) {
+            SyncDeltaBuilder builder = new SyncDeltaBuilder();
+            builder.setToken(token);
+            if (event.isDelete()) {
+                builder.setDeltaType(SyncDeltaType.DELETE);
+                builder.setUid(new Uid(id));
+            } else if (records.containsKey(id)) {
+                builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+                builder.setUid(records.get(id).getUid());
+                builder.setObject(records.get(id));
+            } else {
+                log.ok("{0} {1} no longer exists", event.getChangeType(), id);
+                continue;
+            }
+            if (!handler.handle(builder.build())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the records created or updated by the events.
+     */
+    private Map<String, ConnectorObject> fetch(
+            List<StreamingListener.Event> events, OperationOptions options) {
+        List<String> ids = new ArrayList<String>();
+        for (StreamingListener.Event event : events) {
+            if (!event.isDelete()) {
+                ids.addAll(event.getRecordIds());
+            }
+        }
+        Map<String, ConnectorObject> records = new HashMap<String, ConnectorObject>();
+        int batchSize = configuration.getSyncBatchSize();
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            for (ConnectorObject record : userOp.fetchRecords(objectClass, type, ids
+                    .subList(i, Math.min(i + batchSize, ids.size())), options)) {
+                records.put(record.getUid().getUidValue(), record);
+            }
+        }
+        return records;
+    }
+
+    private static long toReplayId(SyncToken token) {
+        if (token == null) {
+            return StreamingListener.REPLAY_NEW;
+        }
+        Object value = token.getValue();
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid sync token: " + value);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.sql.Types;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+
+/**
+ * LiveSync of the users changed since a token.
+ * <p>
+ * Users are queried in <code>SystemModstamp, Id</code> order from the
+ * position in the token. The token is
+ * <code>&lt;SystemModstamp&gt;|&lt;Id&gt;</code> of the last delivered
+ * user; the Id breaks the ties between users modified within the same
+ * millisecond, so no change is delivered twice or skipped. Users cannot be
+ * deleted in Salesforce, deactivations are delivered as updates.
+ * </p>
+ */
+public class SalesforceSyncOp {
+
+    private static final Log log = Log.getLog(SalesforceSyncOp.class);
+
+    static final String MODSTAMP_ATTRIBUTE = "SystemModstamp";
+
+    private static final String TOKEN_SEPARATOR = "|";
+
+    private final SalesforceUserOp userOp;
+
+    private final SalesforceConfiguration configuration;
+
+    SalesforceSyncOp(SalesforceUserOp userOp,
+            SalesforceConfiguration configuration) {
+        this.userOp = userOp;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Delivers the users changed after the token, oldest first.
+     *
+     * @param token
+     *            the token of the last delivered change, or null to deliver
+     *            every user
+     */
+    public void sync(SyncToken token, final SyncResultsHandler handler,
+            OperationOptions options) {
+        FilterWhereBuilder where = token != null ? after(token) : null;
+
+        Set<String> attributesToGet = new LinkedHashSet<String>();
+        if (options != null && options.getAttributesToGet() != null) {
+            for (String attributeName : options.getAttributesToGet()) {
+                attributesToGet.add(attributeName);
+            }
+        }
+        attributesToGet.add(MODSTAMP_ATTRIBUTE);
+        OperationOptions queryOptions = new OperationOptionsBuilder()
+                .setAttributesToGet(attributesToGet).build();
+
+        userOp.executeQuery(where, getOrderBy(false), new ResultsHandler() {
+            public boolean handle(ConnectorObject obj) {
+                SyncDeltaBuilder builder = new SyncDeltaBuilder();
+                builder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+                builder.setUid(obj.getUid());
+                builder.setObject(obj);
+                builder.setToken(toToken(obj));
+                return handler.handle(builder.build());
+            }
+        }, queryOptions);
+    }
+
+    /**
+     * @return the token of the most recently modified user, or null if there
+     *         is none
+     */
+    public SyncToken getLatestSyncToken() {
+        final SyncToken[] latest = new SyncToken[1];
+        OperationOptions queryOptions = new OperationOptionsBuilder()
+                .setAttributesToGet(MODSTAMP_ATTRIBUTE)
+                .setOption(SalesforceUserOp.OP_PAGE_SIZE, 1).build();
+
+        userOp.executeQuery(null, getOrderBy(true), new ResultsHandler() {
+            public boolean handle(ConnectorObject obj) {
+                latest[0] = toToken(obj);
+                return false;
+            }
+        }, queryOptions);
+        return latest[0];
+    }
+
+    private String getOrderBy(boolean descending) {
+        String direction = descending ? " DESC" : "";
+        return MODSTAMP_ATTRIBUTE + direction + ", "
+                + configuration.getUniqueAttribute() + direction;
+    }
+
+    /**
+     * SystemModstamp &gt; t OR (SystemModstamp = t AND Id &gt; id)
+     */
+    private FilterWhereBuilder after(SyncToken token) {
+        String value = String.valueOf(token.getValue());
+        int separator = value.lastIndexOf(TOKEN_SEPARATOR);
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Invalid sync token: " + value);
+        }
+        String modstamp = value.substring(0, separator);
+        String id = value.substring(separator + 1);
+
+        FilterWhereBuilder later = new FilterWhereBuilder();
+        later.addBind(new SOQLParam(MODSTAMP_ATTRIBUTE, modstamp,
+                Types.TIMESTAMP), ">");
+        if (StringUtil.isEmpty(id)) {
+            return later;
+        }
+
+        FilterWhereBuilder same = new FilterWhereBuilder();
+        same.addBind(new SOQLParam(MODSTAMP_ATTRIBUTE, modstamp,
+                Types.TIMESTAMP), "=");
+        FilterWhereBuilder greaterId = new FilterWhereBuilder();
+        greaterId.addBind(new SOQLParam(configuration.getUniqueAttribute(),
+                id, Types.VARCHAR), ">");
+        FilterWhereBuilder tie = new FilterWhereBuilder();
+        tie.join("AND", same, greaterId);
+
+        FilterWhereBuilder where = new FilterWhereBuilder();
+        where.join("OR", later, tie);
+        return where;
+    }
+
+    private SyncToken toToken(ConnectorObject obj) {
+        Attribute modstamp = obj.getAttributeByName(MODSTAMP_ATTRIBUTE);
+        String value = modstamp != null ? AttributeUtil
+                .getStringValue(modstamp) : null;
+        if (value == null) {
+            throw new ConnectorException(MODSTAMP_ATTRIBUTE
+                    + " is missing from " + obj.getUid());
+        }
+        return new SyncToken(toSoqlDateTime(value) + TOKEN_SEPARATOR
+                + obj.getUid().getUidValue());
+    }
+
+    /**
+     * Converts the REST API representation (2012-01-06T17:08:13.000+0000) to
+     * a SOQL dateTime literal in UTC (2012-01-06T17:08:13.000Z).
+     */
+    static String toSoqlDateTime(String value) {
+        try {
+            Date date = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+                    .parse(value);
+            SimpleDateFormat utc = new SimpleDateFormat(
+                    "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return utc.format(date);
+        } catch (ParseException e) {
+            log.warn("Unexpected {0} format: {1}", MODSTAMP_ATTRIBUTE, value);
+            return value;
+        }
+    }
+}
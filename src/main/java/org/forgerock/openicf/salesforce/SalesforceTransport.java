@@ -0,0 +1,157 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.restlet.Client;
+import org.restlet.Context;
+import org.restlet.data.ChallengeScheme;
+import org.restlet.data.Parameter;
+import org.restlet.data.Protocol;
+import org.restlet.engine.Engine;
+import org.restlet.util.Series;
+
+/**
+ * The HTTP transport shared by the connections of the process.
+ * <p>
+ * Connections with the same connection pool and timeout settings share one
+ * {@link Client}, and with it one pool of kept-alive connections, so that
+ * creating a connection does not resolve a client helper nor open a new
+ * pool. The client is stopped when its last connection is disposed. The
+ * OAuth authenticator is registered with the Restlet engine once.
+ * </p>
+ */
+class SalesforceTransport {
+
+    private static final Log log = Log.getLog(SalesforceTransport.class);
+
+    private static final Map<String, SalesforceTransport> instances = new HashMap<String, SalesforceTransport>();
+
+    private final String key;
+
+    private final Client client;
+
+    private int references;
+
+    private SalesforceTransport(String key, Client client) {
+        this.key = key;
+        this.client = client;
+    }
+
+    /**
+     * Returns the client for the settings of the configuration, creating it
+     * if needed. Each call must be paired with {@link #release(Client)}.
+     */
+    static synchronized Client acquire(SalesforceConfiguration configuration) {
+        registerAuthenticator();
+
+        String key = configuration.getMaxConnectionsPerHost() + "|"
+                + configuration.getMaxTotalConnections() + "|"
+                + configuration.getConnectTimeout() + "|"
+                + configuration.getReadTimeout() + "|"
+                + configuration.getIdleTimeout() + "|"
+                + configuration.getIdleCheckInterval() + "|"
+                + configuration.getTrustStore();
+        SalesforceTransport transport = instances.get(key);
+        if (transport == null) {
+            transport = new SalesforceTransport(key,
+                    createClient(configuration));
+            instances.put(key, transport);
+        }
+        transport.references++;
+        return transport.client;
+    }
+
+    /**
+     * Releases a client returned by {@link #acquire(SalesforceConfiguration)}
+     * and stops it once no connection uses it.
+     */
+    static synchronized void release(Client client) {
+        for (SalesforceTransport transport : instances.values()) {
+            if (transport.client != client) {
+                continue;
+            }
+            if (--transport.references == 0) {
+                instances.remove(transport.key);
+                try {
+                    client.stop();
+                } catch (Exception e) {
+                    log.warn(e, "Failed to stop the HTTP client");
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Registers the OAuth authenticator, unless the engine already has one.
+     */
+    private static void registerAuthenticator() {
+        Engine engine = Engine.getInstance();
+        if (engine.findHelper(ChallengeScheme.HTTP_OAUTH, true, false) == null) {
+            engine.getRegisteredAuthenticators().add(
+                    new SalesforceConnection.OAuthHelper());
+        }
+    }
+
+    private static Client createClient(SalesforceConfiguration configuration) {
+        List<Protocol> p = new ArrayList<Protocol>();
+        p.add(Protocol.HTTPS);
+        p.add(Protocol.HTTP);
+
+        // Apache HttpClient keeps connections (and their TLS sessions) alive
+        // in a pool shared by every request of the connections.
+        Context context = new Context();
+        Series<Parameter> parameters = context.getParameters();
+        parameters.add("maxConnectionsPerHost", String.valueOf(configuration
+                .getMaxConnectionsPerHost()));
+        parameters.add("maxTotalConnections", String.valueOf(configuration
+                .getMaxTotalConnections()));
+        parameters.add("socketTimeout", String.valueOf(configuration
+                .getReadTimeout()));
+        parameters.add("idleTimeout", String.valueOf(configuration
+                .getIdleTimeout()));
+        parameters.add("idleCheckInterval", String.valueOf(configuration
+                .getIdleCheckInterval()));
+        parameters.add("tcpNoDelay", "true");
+
+        String trustStore = configuration.getTrustStore();
+        if (StringUtil.isNotEmpty(trustStore)) {
+            parameters.add("truststorePath", trustStore);
+        }
+
+        Client client = new Client(context, p,
+                SalesforceConnection.HTTP_CLIENT_HELPER);
+        client.setConnectTimeout(configuration.getConnectTimeout());
+        return client;
+    }
+}
@@ -1,39 +1,123 @@
 package org.forgerock.openicf.salesforce;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.regex.Pattern;
 
-import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.common.security.GuardedString.Accessor;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
-import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.Uid;
+import org.restlet.data.Form;
+import org.restlet.data.Method;
+import org.restlet.data.Reference;
+import org.restlet.data.Status;
+import org.restlet.engine.http.header.HeaderConstants;
 import org.restlet.ext.jackson.JacksonRepresentation;
 import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.ClientResource;
 import org.restlet.resource.ResourceException;
 
 public class SalesforceUserOp {
 
     private static final Log log = Log.getLog(SalesforceUserOp.class);
+
+    /**
+     * The page size operation option (OperationOptions.OP_PAGE_SIZE of newer
+     * framework versions).
+     */
+    static final String OP_PAGE_SIZE = "PAGE_SIZE";
+
+    /**
+     * Longest query URL sent, below the 16,384 bytes Salesforce accepts in a
+     * request URI. The 100,000 characters SOQL limit is never reached first.
+     */
+    private static final int MAX_QUERY_URL_LENGTH = 16000;
+
+    /**
+     * Most records the sObject Collections resource reads at once.
+     */
+    private static final int MAX_COLLECTION_SIZE = 2000;
+
+    /**
+     * First API version of the sObject Collections GET.
+     */
+    private static final int COLLECTIONS_API_VERSION = 42;
+
+    /**
+     * How many query counts are kept for the bulk decision.
+     */
+    private static final int MAX_COUNTS = 100;
+
+    /**
+     * The record counts of the latest bulk candidate queries and when they
+     * were read, by credentials and SOQL, least recently used first.
+     */
+    private static final Map<String, long[]> counts = new LinkedHashMap<String, long[]>(
+            16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            return size() > MAX_COUNTS;
+        }
+    };
+
+    private static final Pattern SALESFORCE_ID = Pattern
+            .compile("[a-zA-Z0-9]{15}|[a-zA-Z0-9]{18}");
+
+    private static final Pattern ORDER_BY = Pattern.compile(
+            "\\sORDER\\s+BY\\s", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Reference ids of the Composite API subrequests.
+     */
+    private static final String USER_REFERENCE = "newUser";
+    private static final String PASSWORD_REFERENCE = "newPassword";
+
     private final SalesforceConnector connector;
     private final SalesforceConfiguration configuration;
+    private final RetryPolicy retryPolicy;
+
+    private final ConnectionHealth health;
 
     SalesforceUserOp(SalesforceConnector connector) {
         this.connector = connector;
         this.configuration = (SalesforceConfiguration) connector
                 .getConfiguration();
+        this.retryPolicy = new RetryPolicy(this.configuration);
+        this.health = connector.getConnection().getHealth();
+    }
+
+    /**
+     * @see SalesforceConnector#getStreamingListener(String, long)
+     */
+    StreamingListener getStreamingListener(String type, long replayFrom) {
+        return this.connector.getStreamingListener(type, replayFrom);
+    }
+
+    /**
+     * @see SalesforceConnector#getSchemaCache()
+     */
+    SchemaCache getSchemaCache() {
+        return this.connector.getSchemaCache();
     }
 
     public Uid createUser(final Set<Attribute> createAttributes,
@@ -44,6 +128,10 @@ public class SalesforceUserOp {
         final GuardedString newPassword = (GuardedString) map
                 .remove(OperationalAttributes.PASSWORD_NAME);
 
+        if (newPassword != null && this.configuration.isCompositeApiEnabled()) {
+            return writeUserWithPassword(null, map, newPassword);
+        }
+
         JacksonRepresentation jsonRepresentation = new JacksonRepresentation(
                 map);
 
@@ -85,18 +173,7 @@ public class SalesforceUserOp {
                         List<Map> answers = bodyRepresentation != null ? bodyRepresentation
                                 .getObject() : null;
 
-                        for (Map answerMap : answers) {
-                            Object message = answerMap.get("message");
-                            Object errorCode = answerMap.get("errorCode");
-                            log.info(
-                                    "Create user error. message={0}, errorCode={1}",
-                                    message, errorCode);
-                            if ("DUPLICATE_USERNAME".equals(errorCode)) {
-                                throw new AlreadyExistsException(errorCode
-                                        .toString(), e);
-                            }
-                        }
-                        throw new ConnectorException("Create user error.", e);
+                        throwCreateError(answers, e);
                     }
                 });
 
@@ -115,6 +192,10 @@ public class SalesforceUserOp {
         final GuardedString newPassword = (GuardedString) map
                 .remove(OperationalAttributes.PASSWORD_NAME);
 
+        if (newPassword != null && this.configuration.isCompositeApiEnabled()) {
+            return writeUserWithPassword(uid, map, newPassword);
+        }
+
         JacksonRepresentation jsonRepresentation = new JacksonRepresentation(
                 map);
 
@@ -171,41 +252,361 @@ public class SalesforceUserOp {
 
     public void executeQuery(FilterWhereBuilder query,
             final ResultsHandler handler, OperationOptions options) {
+        executeQuery(query, null, handler, options);
+    }
+
+    /**
+     * @param orderBy
+     *            the ORDER BY clause (without the keywords), or null. Ordered
+     *            queries never run as Bulk API jobs.
+     */
+    public void executeQuery(FilterWhereBuilder query, String orderBy,
+            final ResultsHandler handler, OperationOptions options) {
+
+        String searchQuery = convertSearchQuery(query, orderBy, options);
+
+        if (query != null && query.getInField() != null
+                && query.getInValues().size() > 1
+                && toQueryUrl(searchQuery).length() > MAX_QUERY_URL_LENGTH) {
+            executeInChunks(query, orderBy, handler, options);
+            return;
+        }
+
+        if (orderBy == null && getRecords(query, handler, options)) {
+            return;
+        }
+
+        if (query == null && orderBy == null
+                && this.configuration.getReconPartitions() > 1
+                && getLimit(query, options) == null) {
+            new SalesforcePartitionedQuery(this, this.configuration)
+                    .executeQuery(handler, options);
+            return;
+        }
+
+        if (orderBy == null
+                && SalesforceConfiguration.PAGING_MODE_KEYSET
+                        .equalsIgnoreCase(this.configuration
+                                .getQueryPagingMode())
+                && getLimit(query, options) == null) {
+            new KeysetPager(this, this.configuration).execute(query, handler,
+                    options);
+            return;
+        }
+
+        if (orderBy == null && isBulkQuery(query, options)) {
+            new SalesforceBulkQuery(this, this.configuration).executeQuery(
+                    searchQuery, handler);
+            return;
+        }
+
+        executeSoql(searchQuery, handler);
+    }
+
+    /**
+     * Reads the records of an equality or an IN clause on the Id directly
+     * from the sObject resources, without a query: one Id with
+     * <code>sobjects/User/{id}</code>, several with the sObject Collections
+     * resource when the Composite API is enabled and servicePath is v42.0 or
+     * later.
+     *
+     * @return false if the query must run as SOQL
+     */
+    private boolean getRecords(FilterWhereBuilder query,
+            final ResultsHandler handler, OperationOptions options) {
+        String uidField = this.configuration.getUniqueAttribute();
+        // The sObject resources address the records by their Id only
+        if (query == null || !uidField.equals(query.getInField())
+                || !"Id".equalsIgnoreCase(uidField)) {
+            return false;
+        }
+        List<String> ids = new ArrayList<String>();
+        for (String literal : query.getInValues()) {
+            String id = literal.length() > 2 ? literal.substring(1, literal
+                    .length() - 1) : literal;
+            if (!literal.startsWith("'")
+                    || !SALESFORCE_ID.matcher(id).matches()) {
+                return false;
+            }
+            ids.add(id);
+        }
+
+        StringBuilder fields = new StringBuilder();
+        for (String attribute : getAttributes("User", options)) {
+            fields.append(attribute).append(",");
+        }
+        fields.setLength(fields.length() - 1);
+
+        String relativeUrl;
+        if (ids.size() == 1) {
+            relativeUrl = this.configuration.getUserServicePath() + ids.get(0)
+                    + "?fields=" + Reference.encode(fields.toString());
+        } else if (this.configuration.isCompositeApiEnabled()
+                && this.configuration.getApiVersion() >= COLLECTIONS_API_VERSION
+                && ids.size() <= MAX_COLLECTION_SIZE) {
+            StringBuilder joined = new StringBuilder();
+            for (String id : ids) {
+                joined.append(id).append(",");
+            }
+            joined.setLength(joined.length() - 1);
+            relativeUrl = this.configuration.getCompositeServicePath()
+                    + "/sobjects/User?ids=" + joined + "&fields="
+                    + Reference.encode(fields.toString());
+        } else {
+            return false;
+        }
+
+        final QueryResultReader reader = new QueryResultReader(
+                this.configuration);
+        doGet(relativeUrl, new Callback() {
+            public void call(Representation body) {
+                try {
+                    reader.readRecords(body.getStream(), handler);
+                } catch (IOException e) {
+                    throw new ConnectorIOException(e);
+                }
+            }
+        }, new ErrorCallback() {
+            public void call(ResourceException e, Representation body) {
+                // No such user
+                if (!Status.CLIENT_ERROR_NOT_FOUND.equals(e.getStatus())) {
+                    throw e;
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Splits an IN clause too long for one query URL into several queries,
+     * each as long as the URL allows. Their results are streamed to the
+     * handler in turn, without the records several queries return.
+     */
+    private void executeInChunks(FilterWhereBuilder query, String orderBy,
+            final ResultsHandler handler, OperationOptions options) {
+        // The length of the query without any value, and the length each
+        // value adds to it
+        int overhead = toQueryUrl(
+                convertSearchQuery(query.subset(new ArrayList<String>()),
+                        orderBy, options)).length();
+        int separator = Reference.encode(",").length();
+
+        final Set<Object> seen = new HashSet<Object>();
+        final boolean[] proceed = new boolean[] { true };
+        ResultsHandler distinct = new ResultsHandler() {
+            public boolean handle(ConnectorObject obj) {
+                if (!seen.add(obj.getUid().getUidValue())) {
+                    return true;
+                }
+                return proceed[0] = handler.handle(obj);
+            }
+        };
+
+        List<String> chunk = new ArrayList<String>();
+        int length = overhead;
+        for (String literal : query.getInValues()) {
+            int valueLength = Reference.encode(literal).length() + separator;
+            if (!chunk.isEmpty()
+                    && length + valueLength > MAX_QUERY_URL_LENGTH) {
+                executeQuery(query.subset(chunk), orderBy, distinct, options);
+                if (!proceed[0]) {
+                    return;
+                }
+                chunk.clear();
+                length = overhead;
+            }
+            chunk.add(literal);
+            length += valueLength;
+        }
+        if (!chunk.isEmpty()) {
+            executeQuery(query.subset(chunk), orderBy, distinct, options);
+        }
+    }
+
+    /**
+     * Runs a SOQL query through the REST query resource.
+     */
+    void executeSoql(String soql, final ResultsHandler handler) {
+        executeSoql(soql, ObjectClass.ACCOUNT, handler);
+    }
+
+    /**
+     * Runs a SOQL query through the REST query resource, reading the records
+     * as objects of the given class.
+     */
+    void executeSoql(String soql, final ObjectClass objectClass,
+            final ResultsHandler handler) {
+        String relativeUrl = toQueryUrl(soql);
+
+        QueryPager.PageFetcher fetcher = new QueryPager.PageFetcher() {
+            public QueryPager.Page fetch(String relativeUrl) {
+                return fetchPage(relativeUrl, objectClass);
+            }
+        };
+        if (this.configuration.getQueryFanOut() > 1) {
+            // A sorted query is always delivered in its order
+            boolean ordered = this.configuration.isQueryOrdered()
+                    || ORDER_BY.matcher(soql).find();
+            new QueryLocatorReader(fetcher, this.configuration
+                    .getQueryFanOut(), ordered).execute(relativeUrl, handler);
+            return;
+        }
+        if (this.configuration.getQueryPrefetchDepth() > 0) {
+            new QueryPager(fetcher, this.configuration.getQueryPrefetchDepth())
+                    .execute(relativeUrl, handler);
+            return;
+        }
+
+        // Follow the query locator until Salesforce reports the result set is
+        // done. Each page is decoded record by record straight into the
+        // handler and released before the next one is requested.
+        //
+        // Once the handler returns false the rest of the page is not decoded,
+        // the response is released and no further page is requested.
+        final QueryResultReader reader = new QueryResultReader(
+                this.configuration, objectClass);
+        final boolean[] proceed = new boolean[] { true };
+
+        while (relativeUrl != null && proceed[0]) {
+            doGet(relativeUrl, new Callback() {
+                public void call(Representation body) {
+                    try {
+                        proceed[0] = reader.read(body.getStream(), handler);
+                    } catch (IOException e) {
+                        throw new ConnectorIOException(e);
+                    }
+
+                    log.info(
+                            "Execute Query Result. totalSize: {0}, done: {1}",
+                            reader.getTotalSize(), reader.isDone());
+                }
+            }, null);
+
+            relativeUrl = reader.getNextRecordsUrl();
+        }
+    }
+
+    /**
+     * Fetches the records of a batch of Ids with one query. Deleted records
+     * are not returned.
+     *
+     * @param objectClass
+     *            the object class of the sObject type
+     */
+    List<ConnectorObject> fetchRecords(ObjectClass objectClass, String type,
+            List<String> ids, OperationOptions options) {
+        StringBuilder soql = new StringBuilder("SELECT ");
+        for (String attribute : getAttributes(type, options)) {
+            soql.append(attribute).append(",");
+        }
+        soql.setLength(soql.length() - 1);
+        soql.append(" FROM ").append(type).append(" WHERE ").append(
+                this.configuration.getUniqueAttribute()).append(" IN (");
+        for (String id : ids) {
+            soql.append("'").append(id).append("',");
+        }
+        soql.setCharAt(soql.length() - 1, ')');
+
+        final List<ConnectorObject> records = new ArrayList<ConnectorObject>(
+                ids.size());
+        executeSoql(soql.toString(), objectClass, new ResultsHandler() {
+            public boolean handle(ConnectorObject obj) {
+                return records.add(obj);
+            }
+        });
+        return records;
+    }
+
+    private Set<String> getAttributes(String type, OperationOptions options) {
+        if ("User".equals(type)) {
+            Set<String> attributes = new LinkedHashSet<String>();
+            for (String attribute : SalesforceAttributeUtils.toAttrList(
+                    this.configuration, options)) {
+                attributes.add(attribute);
+            }
+            return attributes;
+        }
+        Set<String> attributes = new LinkedHashSet<String>();
+        attributes.add(this.configuration.getUniqueAttribute());
+        if (options != null && options.getAttributesToGet() != null) {
+            for (String attribute : options.getAttributesToGet()) {
+                if (!attribute.equals(Uid.NAME)
+                        && !attribute.equals(Name.NAME)
+                        && !attribute
+                                .equals(OperationalAttributes.PASSWORD_NAME)) {
+                    attributes.add(attribute);
+                }
+            }
+        }
+        return attributes;
+    }
 
-        String searchQuery = convertSearchQuery(query, options);
-        String relativeUrl = this.configuration.getQueryServicePath()
-                + searchQuery;
+    /**
+     * Returns the LIMIT pushed into the SOQL query: 1 when the filter can
+     * match a single record only, otherwise the page size requested by the
+     * caller, if any.
+     */
+    private Integer getLimit(FilterWhereBuilder query, OperationOptions options) {
+        if (query != null && query.isSingleResult()) {
+            return 1;
+        }
+        if (options != null) {
+            Object pageSize = options.getOptions().get(OP_PAGE_SIZE);
+            if (pageSize instanceof Integer && (Integer) pageSize > 0) {
+                return (Integer) pageSize;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fetches one query page and decodes all of its records.
+     */
+    private QueryPager.Page fetchPage(String relativeUrl,
+            ObjectClass objectClass) {
+        final QueryResultReader reader = new QueryResultReader(
+                this.configuration, objectClass);
+        final List<ConnectorObject> records = new ArrayList<ConnectorObject>(
+                this.configuration.getQueryBatchSize());
 
         doGet(relativeUrl, new Callback() {
             public void call(Representation body) {
-                JacksonRepresentation<Map> bodyRepresentation = new JacksonRepresentation<Map>(
-                        body, Map.class);
-                Map answer = bodyRepresentation != null ? bodyRepresentation
-                        .getObject() : null;
-                boolean done = (Boolean) answer.get("done");
-                List<Map> records = (List<Map>) answer.get("records");
-                int totalSize = (Integer) answer.get("totalSize");
-
-                log.info(
-                        "Execute Query Result. totalSize: {0}, done: {1}, records: {2}",
-                        totalSize, done, records);
-
-                for (Map record : records) {
-                    ConnectorObject co = createConnectorObject(record);
-                    handler.handle(co);
+                try {
+                    reader.read(body.getStream(), new ResultsHandler() {
+                        public boolean handle(ConnectorObject obj) {
+                            return records.add(obj);
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new ConnectorIOException(e);
                 }
+
+                log.info("Execute Query Result. totalSize: {0}, done: {1}",
+                        reader.getTotalSize(), reader.isDone());
             }
         }, null);
+
+        return new QueryPager.Page(records, reader.getNextRecordsUrl(),
+                reader.getTotalSize());
     }
 
     private String convertSearchQuery(FilterWhereBuilder query,
-            OperationOptions options) {
+            String orderBy, OperationOptions options) {
+        return convertSearchQuery(query, orderBy, getLimit(query, options),
+                options);
+    }
+
+    /**
+     * @param limit
+     *            the LIMIT of the query, or null
+     */
+    String convertSearchQuery(FilterWhereBuilder query, String orderBy,
+            Integer limit, OperationOptions options) {
         String[] alist = SalesforceAttributeUtils.toAttrList(
                 this.configuration, options);
 
         StringBuilder sb = new StringBuilder();
-        sb.append("SELECT");
-        sb.append("+");
+        sb.append("SELECT ");
 
         for (String attr : alist) {
             sb.append(attr);
@@ -213,13 +614,15 @@ public class SalesforceUserOp {
         }
         sb.deleteCharAt(sb.lastIndexOf(","));
 
-        sb.append("+from+User");
+        sb.append(" FROM User");
+        sb.append(getWhereClause(query));
 
-        if (query != null) {
-            // TODO make salesforce search query
-            sb.append("+WHERE");
-            sb.append("+");
-            sb.append(query.getWhereClause());
+        if (orderBy != null) {
+            sb.append(" ORDER BY ").append(orderBy);
+        }
+
+        if (limit != null) {
+            sb.append(" LIMIT ").append(limit);
         }
 
         String q = sb.toString();
@@ -229,41 +632,74 @@ public class SalesforceUserOp {
         return q;
     }
 
-    private ConnectorObject createConnectorObject(Map record) {
-        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
-
-        Set<Entry<String, Object>> entrySet = record.entrySet();
+    private String getWhereClause(FilterWhereBuilder query) {
+        if (query == null) {
+            return "";
+        }
+        // TODO make salesforce search query
+        return " WHERE " + query.getWhereClause();
+    }
 
-        for (Entry<String, Object> entry : entrySet) {
-            String key = entry.getKey();
-            Object value = entry.getValue();
+    private String toQueryUrl(String soql) {
+        return this.configuration.getQueryServicePath() + Reference.encode(soql);
+    }
 
-            // UID (Id)
-            if (key.equals(configuration.getUniqueAttribute())) {
-                builder.setUid(value.toString());
-                continue;
-            }
+    /**
+     * Decides whether the query runs as a Bulk API 2.0 job: apiType must be
+     * "bulk", the query must not be limited and it must match at least
+     * bulkQueryThreshold records. The count is reused for bulkQueryCountTtl
+     * milliseconds, so repeated queries do not each pay a COUNT() request.
+     */
+    private boolean isBulkQuery(FilterWhereBuilder query,
+            OperationOptions options) {
+        if (!SalesforceConfiguration.API_TYPE_BULK
+                .equalsIgnoreCase(this.configuration.getApiType())
+                || getLimit(query, options) != null) {
+            return false;
+        }
+        int threshold = this.configuration.getBulkQueryThreshold();
+        if (threshold <= 0) {
+            return true;
+        }
 
-            // NAME (Username)
-            if (key.equals(configuration.getNameAttribute())) {
-                builder.setName(value.toString());
-                continue;
+        String soql = "SELECT COUNT() FROM User" + getWhereClause(query);
+        String key = this.configuration.getCredentialsKey() + "|"
+                + this.configuration.getServicePath() + "|" + soql;
+        long now = System.currentTimeMillis();
+        long ttl = this.configuration.getBulkQueryCountTtl();
+        synchronized (counts) {
+            long[] count = counts.get(key);
+            if (count != null && now < count[1] + ttl) {
+                log.info("Query matched {0} records, bulk threshold is {1}",
+                        count[0], threshold);
+                return count[0] >= threshold;
             }
+        }
 
-            // Other attributes
-            if (value instanceof String) {
-                String stringValue = (String) value;
-                if (StringUtil.isEmpty(stringValue)) {
-                    continue;
+        final QueryResultReader reader = new QueryResultReader(
+                this.configuration);
+        doGet(toQueryUrl(soql), new Callback() {
+            public void call(Representation body) {
+                try {
+                    reader.read(body.getStream(), new ResultsHandler() {
+                        public boolean handle(ConnectorObject obj) {
+                            return true;
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new ConnectorIOException(e);
                 }
-                builder.addAttribute(key, stringValue);
+            }
+        }, null);
 
-            } else if (value instanceof List) {
-                List multiValue = (List) value;
-                builder.addAttribute(key, multiValue);
+        log.info("Query matches {0} records, bulk threshold is {1}",
+                reader.getTotalSize(), threshold);
+        if (ttl > 0) {
+            synchronized (counts) {
+                counts.put(key, new long[] { reader.getTotalSize(), now });
             }
         }
-        return builder.build();
+        return reader.getTotalSize() >= threshold;
     }
 
     protected void doPost(String relativeUrl, Object representation,
@@ -285,9 +721,6 @@ public class SalesforceUserOp {
         String relativeUrl = this.configuration.getUserServicePath()
                 + uid.getUidValue() + "/password";
 
-        final Boolean[] ignorePasswordError = new Boolean[1];
-        ignorePasswordError[0] = this.configuration.isIgnorePasswordError();
-
         doPost(relativeUrl, jsonRepresentation, new NothingCallback(),
                 new ErrorCallback() {
                     public void call(ResourceException e, Representation body) {
@@ -295,94 +728,369 @@ public class SalesforceUserOp {
                                 body, List.class);
                         List answer = bodyRepresentation != null ? bodyRepresentation
                                 .getObject() : null;
-                        Map answerMap = (Map) answer.get(0);
-                        String message = (String) answerMap.get("message");
-                        String errorCode = (String) answerMap.get("errorCode");
 
-                        log.info(
-                                "Update password error. message={0}, errorCode={1}",
-                                message, errorCode);
-
-                        if (!ignorePasswordError[0]) {
-                            throw new InvalidNewPasswordException(message,
-                                    errorCode);
-                        }
+                        passwordError((Map) answer.get(0));
                     }
                 });
     }
 
-    protected void doPost(String relativeUrl, Object representation,
-            Callback callback, ErrorCallback errorCallback) {
+    private void passwordError(Map answerMap) {
+        String message = (String) answerMap.get("message");
+        String errorCode = (String) answerMap.get("errorCode");
 
-        ClientResource child = getClient().getChild(relativeUrl);
+        log.info("Update password error. message={0}, errorCode={1}",
+                message, errorCode);
 
-        try {
-            Representation body = child.post(representation);
+        if (!this.configuration.isIgnorePasswordError()) {
+            throw new InvalidNewPasswordException(message, errorCode);
+        }
+    }
 
-            if (child.getStatus().isSuccess()) {
-                callback.call(body);
+    private void throwCreateError(List<Map> answers, Throwable cause) {
+        if (answers != null) {
+            for (Map answerMap : answers) {
+                Object message = answerMap.get("message");
+                Object errorCode = answerMap.get("errorCode");
+                log.info("Create user error. message={0}, errorCode={1}",
+                        message, errorCode);
+                if ("DUPLICATE_USERNAME".equals(errorCode)) {
+                    throw new AlreadyExistsException(errorCode.toString(),
+                            cause);
+                }
             }
+        }
+        throw new ConnectorException("Create user error.", cause);
+    }
 
-        } catch (ResourceException e) {
-            if (isUnAuthorized(e)) {
-                this.connector.refreshAccessToken();
-                doPost(relativeUrl, representation, callback, errorCallback);
-            }
-            if (errorCallback == null) {
-                throw e;
-            } else {
-                errorCallback.call(e, child.getResponseEntity());
+    private void throwUpdateError(List<Map> answers, Throwable cause) {
+        if (answers != null) {
+            for (Map answerMap : answers) {
+                Object message = answerMap.get("message");
+                Object errorCode = answerMap.get("errorCode");
+                log.info("Update user error. message={0}, errorCode={1}",
+                        message, errorCode);
+                if ("DUPLICATE_USERNAME".equals(errorCode)) {
+                    throw new AlreadyExistsException(errorCode.toString(),
+                            cause);
+                }
+                if ("NOT_FOUND".equals(errorCode)
+                        || "ENTITY_IS_DELETED".equals(errorCode)) {
+                    throw new UnknownUidException(String.valueOf(message),
+                            cause);
+                }
+                throw new ConnectorException("Update user error. "
+                        + errorCode + ": " + message, cause);
             }
         }
+        throw new ConnectorException("Update user error.", cause);
     }
 
-    protected void doGet(String relativeUrl, Callback callback,
-            ErrorCallback errorCallback) {
+    /**
+     * Writes the user and sets its password in a single Composite API
+     * request. For a new user the password subrequest refers to the created
+     * record through the <code>@{newUser.id}</code> reference. An update is
+     * sent all or none, so a rejected password leaves the user untouched
+     * unless password errors are ignored. Errors are mapped the same way as
+     * for the separate requests.
+     * 
+     * @param uid
+     *            the user to update, or null to create one
+     */
+    private Uid writeUserWithPassword(final Uid uid, Map user,
+            GuardedString newPassword) {
+        String userPath = "/" + this.configuration.getUserServicePath();
+
+        Map<String, Object> userRequest = new HashMap<String, Object>();
+        userRequest.put("referenceId", USER_REFERENCE);
+        userRequest.put("body", user);
+        if (uid == null) {
+            userRequest.put("method", "POST");
+            userRequest.put("url", userPath);
+        } else {
+            userRequest.put("method", "PATCH");
+            userRequest.put("url", userPath + uid.getUidValue());
+        }
 
-        ClientResource child = getClient().getChild(relativeUrl);
+        final Map<String, Object> passwordRequest = new HashMap<String, Object>();
+        passwordRequest.put("referenceId", PASSWORD_REFERENCE);
+        passwordRequest.put("method", "POST");
+        passwordRequest.put("url", userPath
+                + (uid == null ? "@{" + USER_REFERENCE + ".id}" : uid
+                        .getUidValue()) + "/password");
+        newPassword.access(new Accessor() {
+            public void access(char[] clearChars) {
+                Map<String, String> body = new HashMap<String, String>();
+                body.put("NewPassword", String.valueOf(clearChars));
+                passwordRequest.put("body", body);
+            }
+        });
 
-        try {
-            Representation body = child.get();
+        List<Map<String, Object>> subrequests = new ArrayList<Map<String, Object>>(
+                2);
+        subrequests.add(userRequest);
+        subrequests.add(passwordRequest);
+
+        Map<String, Object> composite = new HashMap<String, Object>();
+        // A new user is kept when only its password is rejected. An update
+        // is all or none, so the password never changes without it; the
+        // update response has no body the password subrequest could refer
+        // to.
+        composite.put("allOrNone", uid != null);
+        composite.put("compositeRequest", subrequests);
+
+        final Map<String, Map> responses = new HashMap<String, Map>();
+        doPost(this.configuration.getCompositeServicePath(),
+                new JacksonRepresentation<Map<String, Object>>(composite),
+                new Callback() {
+                    public void call(Representation body) {
+                        List<Map> compositeResponse = (List<Map>) new JacksonRepresentation<Map>(
+                                body, Map.class).getObject().get(
+                                "compositeResponse");
+                        if (compositeResponse != null) {
+                            for (Map response : compositeResponse) {
+                                responses.put(
+                                        (String) response.get("referenceId"),
+                                        response);
+                            }
+                        }
+                    }
+                });
 
-            if (child.getStatus().isSuccess()) {
-                callback.call(body);
+        Map userResponse = responses.get(USER_REFERENCE);
+        Map passwordResponse = responses.get(PASSWORD_REFERENCE);
+        if (!isSuccess(userResponse)) {
+            List<Map> errors = getErrors(userResponse);
+            if (isHalted(errors)) {
+                // Rolled back because the password was rejected
+                List<Map> passwordErrors = getErrors(passwordResponse);
+                if (uid != null && passwordErrors != null
+                        && !passwordErrors.isEmpty()) {
+                    passwordError(passwordErrors.get(0));
+                    // The password error is ignored, write the user alone
+                    doPost(this.configuration.getUserServicePath()
+                            + uid.getUidValue() + "?_HttpMethod=PATCH",
+                            new JacksonRepresentation(user),
+                            new NothingCallback());
+                    return uid;
+                }
             }
-
-        } catch (ResourceException e) {
-            if (isUnAuthorized(e)) {
-                this.connector.refreshAccessToken();
-                doGet(relativeUrl, callback, errorCallback);
+            if (uid == null) {
+                throwCreateError(errors, null);
             }
-            if (errorCallback == null) {
-                throw e;
-            } else {
-                errorCallback.call(e, child.getResponseEntity());
+            throwUpdateError(errors, null);
+        }
+
+        Uid result = uid;
+        if (result == null) {
+            result = new Uid((String) ((Map) userResponse.get("body"))
+                    .get("id"));
+            log.info("Create Result. id: {0}", result.getUidValue());
+        }
+
+        if (!isSuccess(passwordResponse)) {
+            List<Map> errors = getErrors(passwordResponse);
+            if (errors != null && !errors.isEmpty()) {
+                passwordError(errors.get(0));
             }
         }
+        return result;
     }
 
-    protected void doDelete(String relativeUrl, Callback callback,
+    /**
+     * @return whether the subrequest was not processed because another one
+     *         of the all or none request failed
+     */
+    private boolean isHalted(List<Map> errors) {
+        return errors != null && !errors.isEmpty()
+                && "PROCESSING_HALTED".equals(errors.get(0).get("errorCode"));
+    }
+
+    private boolean isSuccess(Map subresponse) {
+        if (subresponse == null) {
+            return false;
+        }
+        Object status = subresponse.get("httpStatusCode");
+        return status instanceof Number && ((Number) status).intValue() < 300;
+    }
+
+    private List<Map> getErrors(Map subresponse) {
+        Object body = subresponse != null ? subresponse.get("body") : null;
+        return body instanceof List ? (List<Map>) body : null;
+    }
+
+    protected void doPost(String relativeUrl, Object representation,
+            Callback callback, ErrorCallback errorCallback) {
+        execute(Method.POST, relativeUrl, representation, null, callback,
+                errorCallback);
+    }
+
+    protected void doPut(String relativeUrl, Object representation,
+            Callback callback, ErrorCallback errorCallback) {
+        execute(Method.PUT, relativeUrl, representation, null, callback,
+                errorCallback);
+    }
+
+    /**
+     * @return the resource of the request, for access to the response headers
+     */
+    protected ClientResource doGet(String relativeUrl, Callback callback,
             ErrorCallback errorCallback) {
+        return doGet(relativeUrl, null, callback, errorCallback);
+    }
 
-        ClientResource child = getClient().getChild(relativeUrl);
+    /**
+     * Conditional GET; the callback is not called when the resource has not
+     * been modified since the given date (304).
+     * 
+     * @return the resource of the request, for access to the response status
+     *         and headers
+     */
+    protected ClientResource doGet(String relativeUrl, Date modifiedSince,
+            Callback callback, ErrorCallback errorCallback) {
+        return execute(Method.GET, relativeUrl, null, modifiedSince, callback,
+                errorCallback);
+    }
 
-        try {
-            Representation body = child.delete();
+    protected void doDelete(String relativeUrl, Callback callback,
+            ErrorCallback errorCallback) {
+        execute(Method.DELETE, relativeUrl, null, null, callback,
+                errorCallback);
+    }
 
-            if (child.getStatus().isSuccess()) {
-                callback.call(body);
+    /**
+     * Sends the request, retrying it according to the {@link RetryPolicy}.
+     * A 401 refreshes the access token before the next attempt. The error
+     * callback (or the exception) is only reached by the last attempt.
+     * 
+     * @return the resource of the last attempt
+     */
+    private ClientResource execute(Method method, String relativeUrl,
+            Object representation, Date modifiedSince, Callback callback,
+            ErrorCallback errorCallback) {
+        boolean idempotent = RetryPolicy.isIdempotent(method, relativeUrl);
+
+        for (int attempt = 1;; attempt++) {
+            ClientResource child = getClient().getChild(relativeUrl);
+            // Retries are handled here, not by Restlet
+            child.setRetryOnError(false);
+            if (Method.GET.equals(method)) {
+                SalesforceConnection.addHeader(child, "Sforce-Query-Options",
+                        "batchSize=" + this.configuration.getQueryBatchSize());
+            }
+            if (modifiedSince != null) {
+                child.getConditions().setModifiedSince(modifiedSince);
             }
 
-        } catch (ResourceException e) {
-            if (isUnAuthorized(e)) {
-                this.connector.refreshAccessToken();
-                doDelete(relativeUrl, callback, errorCallback);
+            Representation body = null;
+            try {
+                if (Method.GET.equals(method)) {
+                    body = child.get();
+                } else if (Method.PUT.equals(method)) {
+                    body = child.put(representation);
+                } else if (Method.DELETE.equals(method)) {
+                    body = child.delete();
+                } else {
+                    body = child.post(representation);
+                }
+
+                // Any response that is not an error proves the org reachable
+                health.markAlive();
+                if (child.getStatus().isSuccess()) {
+                    callback.call(body);
+                }
+                return child;
+
+            } catch (ResourceException e) {
+                Representation entity = bufferEntity(child);
+
+                if (attempt < retryPolicy.getMaxAttempts()) {
+                    if (isUnAuthorized(e)) {
+                        this.connector.refreshAccessToken(child);
+                        continue;
+                    }
+                    if (retryPolicy.isRetryable(e.getStatus(),
+                            getErrorCode(entity), idempotent)) {
+                        long delay = retryPolicy.getDelay(attempt,
+                                getResponseHeader(child, "Retry-After"));
+                        if (delay >= 0) {
+                            log.info(
+                                    "{0} {1} failed with {2}, retrying in {3} ms (attempt {4})",
+                                    method, relativeUrl, e.getStatus(), delay,
+                                    attempt);
+                            sleep(delay);
+                            continue;
+                        }
+                    }
+                }
+
+                if (errorCallback == null) {
+                    throw e;
+                }
+                errorCallback.call(e, entity);
+                return child;
+
+            } finally {
+                if (body != null) {
+                    body.release();
+                }
             }
-            if (errorCallback == null) {
-                throw e;
-            } else {
-                errorCallback.call(e, child.getResponseEntity());
+        }
+    }
+
+    /**
+     * Reads the error response so it can be both classified and handed to
+     * the error callback.
+     */
+    private Representation bufferEntity(ClientResource child) {
+        Representation entity = child.getResponseEntity();
+        if (entity == null) {
+            return null;
+        }
+        try {
+            String text = entity.getText();
+            return text != null ? new StringRepresentation(text, entity
+                    .getMediaType()) : null;
+        } catch (IOException e) {
+            log.warn(e, "Failed to read the error response");
+            return null;
+        }
+    }
+
+    /**
+     * @return the errorCode of the first error of a REST error response
+     */
+    private String getErrorCode(Representation entity) {
+        if (entity == null) {
+            return null;
+        }
+        try {
+            Object errors = new JacksonRepresentation<Object>(
+                    new StringRepresentation(entity.getText()), Object.class)
+                    .getObject();
+            if (errors instanceof List && !((List) errors).isEmpty()) {
+                errors = ((List) errors).get(0);
             }
+            return errors instanceof Map ? (String) ((Map) errors)
+                    .get("errorCode") : null;
+        } catch (Exception e) {
+            // Not a JSON error response
+            return null;
+        }
+    }
+
+    private String getResponseHeader(ClientResource child, String name) {
+        Form headers = (Form) child.getResponseAttributes().get(
+                HeaderConstants.ATTRIBUTE_HEADERS);
+        return headers != null ? headers.getFirstValue(name, true) : null;
+    }
+
+    private void sleep(long delay) {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting to retry",
+                    e);
         }
     }
 
@@ -398,7 +1106,7 @@ public class SalesforceUserOp {
         public void call(ResourceException e, Representation r);
     }
 
-    class NothingCallback implements Callback {
+    static class NothingCallback implements Callback {
         public void call(Representation r) {
             // nothing
         }
@@ -0,0 +1,338 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.identityconnectors.common.IOUtil;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.Schema;
+import org.identityconnectors.framework.common.objects.SchemaBuilder;
+import org.restlet.data.Status;
+import org.restlet.ext.jackson.JacksonRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.ClientResource;
+
+/**
+ * Caches the sObject describes and the {@link Schema} built from them.
+ * <p>
+ * The schema is kept in memory for schemaCacheTtl milliseconds and shared by
+ * the connector instances of the same org user and settings. Once it expires, every
+ * describe is revalidated with <code>If-Modified-Since</code>: unchanged
+ * describes cost a 304 and the schema is not rebuilt. When
+ * schemaCacheDirectory is set the raw describe JSON is also stored there, so
+ * a restarted connector only revalidates it.
+ * </p>
+ * <p>
+ * The describes of the schemaObjects are fetched concurrently.
+ * </p>
+ */
+class SchemaCache {
+
+    private static final Log log = Log.getLog(SchemaCache.class);
+
+    private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "salesforce-describe");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private static final Map<String, SchemaCache> instances = new HashMap<String, SchemaCache>();
+
+    private final String key;
+
+    private final SalesforceConfiguration configuration;
+
+    private int references;
+
+    private final Map<String, Map> describes = new LinkedHashMap<String, Map>();
+
+    private final Map<String, Date> modified = new HashMap<String, Date>();
+
+    private Schema schema;
+
+    private long expires;
+
+    private SchemaCache(String key, SalesforceConfiguration configuration) {
+        this.key = key;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Returns the cache of the org user, credentials, API version and cache
+     * settings of the configuration, creating it if needed. Each call must be
+     * paired with {@link #release(SchemaCache)}.
+     */
+    static synchronized SchemaCache acquire(
+            SalesforceConfiguration configuration) {
+        String directory = configuration.getSchemaCacheDirectory();
+        String key = configuration.getCredentialsKey() + "|"
+                + configuration.getServicePath() + "|"
+                + configuration.getSchemaCacheTtl() + "|"
+                + configuration.getDescribeThreads() + "|"
+                + (StringUtil.isBlank(directory) ? "" : new File(directory)
+                        .getAbsolutePath());
+        SchemaCache cache = instances.get(key);
+        if (cache == null) {
+            cache = new SchemaCache(key, configuration);
+            instances.put(key, cache);
+        }
+        cache.references++;
+        return cache;
+    }
+
+    /**
+     * Releases a cache returned by {@link #acquire(SalesforceConfiguration)}
+     * and drops it once no connector uses it.
+     */
+    static synchronized void release(SchemaCache cache) {
+        if (--cache.references == 0 && instances.get(cache.key) == cache) {
+            instances.remove(cache.key);
+        }
+    }
+
+    /**
+     * Returns the schema of the given sObjects, revalidating the describes
+     * when the cached schema has expired.
+     */
+    public synchronized Schema getSchema(SalesforceUserOp op,
+            List<String> sobjects) {
+        long now = System.currentTimeMillis();
+        if (schema != null && now < expires
+                && describes.keySet().containsAll(sobjects)) {
+            return schema;
+        }
+
+        boolean changed = revalidate(op, sobjects) || schema == null;
+
+        if (changed) {
+            SchemaBuilder schemaBuilder = new SchemaBuilder(
+                    SalesforceConnector.class);
+            for (String sobject : sobjects) {
+                Map describe = describes.get(sobject);
+                if (describe != null) {
+                    SalesforceAttributeUtils.parseDescribe(describe,
+                            schemaBuilder);
+                }
+            }
+            schema = schemaBuilder.build();
+        }
+        expires = now + configuration.getSchemaCacheTtl();
+        return schema;
+    }
+
+    /**
+     * Returns the cached describe of an sObject, fetching it if needed.
+     */
+    public synchronized Map getDescribe(SalesforceUserOp op, String sobject) {
+        if (!describes.containsKey(sobject)) {
+            revalidate(op, Collections.singletonList(sobject));
+        }
+        return describes.get(sobject);
+    }
+
+    /**
+     * Drops the in-memory schema; the next call revalidates the describes.
+     */
+    public synchronized void invalidate() {
+        expires = 0;
+    }
+
+    /**
+     * Revalidates the describes, up to describeThreads at a time, so the
+     * time taken is that of the slowest describe.
+     * 
+     * @return whether a describe has changed
+     */
+    private boolean revalidate(final SalesforceUserOp op, List<String> sobjects) {
+        for (String sobject : sobjects) {
+            if (!describes.containsKey(sobject)) {
+                load(sobject);
+            }
+        }
+
+        Map<String, Future<Describe>> futures = new LinkedHashMap<String, Future<Describe>>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(configuration.getDescribeThreads(), sobjects.size())),
+                DAEMON_THREADS);
+        try {
+            for (final String sobject : sobjects) {
+                final Date since = modified.get(sobject);
+                futures.put(sobject, executor.submit(new Callable<Describe>() {
+                    public Describe call() {
+                        return fetch(op, sobject, since);
+                    }
+                }));
+            }
+
+            boolean changed = false;
+            for (Map.Entry<String, Future<Describe>> entry : futures
+                    .entrySet()) {
+                Describe describe = get(entry.getValue());
+                if (describe != null) {
+                    put(entry.getKey(), describe.json, describe.lastModified);
+                    store(entry.getKey(), describe.json);
+                    changed = true;
+                }
+            }
+            return changed;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Describe get(Future<Describe> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while describing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the describe, or null if it has not been modified since the
+     *         given date
+     */
+    private Describe fetch(SalesforceUserOp op, final String sobject,
+            Date since) {
+        final Date now = new Date();
+        final Describe[] describe = new Describe[1];
+        ClientResource child = op.doGet(configuration.getServicePath()
+                + "/sobjects/" + sobject + "/describe", since,
+                new SalesforceUserOp.Callback() {
+                    public void call(Representation body) {
+                        try {
+                            Date lastModified = body.getModificationDate();
+                            describe[0] = new Describe(body.getText(),
+                                    lastModified != null ? lastModified : now);
+                        } catch (IOException e) {
+                            throw new ConnectorIOException(e);
+                        }
+                    }
+                }, null);
+
+        if (Status.REDIRECTION_NOT_MODIFIED.equals(child.getStatus())) {
+            log.ok("{0} describe not modified", sobject);
+        }
+        return describe[0];
+    }
+
+    private static class Describe {
+        private final String json;
+        private final Date lastModified;
+
+        Describe(String json, Date lastModified) {
+            this.json = json;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private void put(String sobject, String json, Date lastModified) {
+        describes.put(sobject, new JacksonRepresentation<Map>(
+                new StringRepresentation(json), Map.class).getObject());
+        modified.put(sobject, lastModified);
+    }
+
+    private File getFile(String sobject) {
+        String directory = configuration.getSchemaCacheDirectory();
+        if (StringUtil.isBlank(directory)) {
+            return null;
+        }
+        String user = String.valueOf(configuration.getUsername()).replaceAll(
+                "[^\\w.@-]", "_");
+        String version = configuration.getServicePath().replaceAll(
+                "[^\\w.-]", "_");
+        return new File(new File(new File(directory, user), version), sobject
+                + ".json");
+    }
+
+    private void load(String sobject) {
+        File file = getFile(sobject);
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            put(sobject, new String(IOUtil.readInputStreamBytes(in, true),
+                    "UTF-8"), new Date(file.lastModified()));
+            log.ok("{0} describe loaded from {1}", sobject, file);
+        } catch (Exception e) {
+            log.warn(e, "Ignoring the cached describe {0}", file);
+        } finally {
+            IOUtil.quietClose(in);
+        }
+    }
+
+    private void store(String sobject, String json) {
+        File file = getFile(sobject);
+        if (file == null) {
+            return;
+        }
+        OutputStream out = null;
+        try {
+            file.getParentFile().mkdirs();
+            out = new FileOutputStream(file);
+            out.write(json.getBytes("UTF-8"));
+            out.close();
+            out = null;
+            file.setLastModified(modified.get(sobject).getTime());
+        } catch (IOException e) {
+            log.warn(e, "Failed to store the describe in {0}", file);
+        } finally {
+            IOUtil.quietClose(out);
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.IOUtil;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.restlet.data.Cookie;
+import org.restlet.data.CookieSetting;
+import org.restlet.ext.jackson.JacksonRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.ClientResource;
+import org.restlet.resource.ResourceException;
+
+/**
+ * Streaming API (CometD/Bayeux long-polling) subscriber feeding a bounded
+ * local journal.
+ * <p>
+ * One listener per org user, credentials, streaming settings and sObject
+ * type runs on a daemon thread, with its own {@link SalesforceConnection},
+ * for as long as a connector uses it: it is stopped, and its connection
+ * disposed, when the last connector that acquired it is disposed, so a new
+ * configuration starts a new listener. Change Data Capture
+ * (<code>/data/UserChangeEvent</code>) and PushTopic events of its sObject
+ * type are appended to the journal as they arrive, the events of the other
+ * types a channel such as <code>/data/ChangeEvents</code> carries are
+ * skipped. When the journal stays full for a while the listener drops the
+ * rest of the events it read, waits until the sync has drained half of the
+ * journal and then resubscribes from the last journaled replay id, so the
+ * dropped events are replayed.
+ * </p>
+ * <p>
+ * The replay id of the last event acknowledged by the sync is written to
+ * streamingReplayFile, suffixed with <code>.&lt;type&gt;</code> for the
+ * sObjects other than User, and a restarted listener resumes from it
+ * (Salesforce retains events for 72 hours). The endpoint is streamingEndpoint, by
+ * default <code>/cometd/&lt;version of servicePath&gt;</code> of the
+ * instance; an absolute URL points the listener to a stand-in server.
+ * </p>
+ */
+class StreamingListener implements Runnable {
+
+    private static final Log log = Log.getLog(StreamingListener.class);
+
+    /** Replay only the events published after the subscription. */
+    static final long REPLAY_NEW = -1;
+
+    /** Replay all the events Salesforce still retains. */
+    static final long REPLAY_ALL = -2;
+
+    /** How long, in milliseconds, an event waits for room in the journal. */
+    private static final long JOURNAL_WAIT = 1000;
+
+    private static final Map<String, StreamingListener> instances = new HashMap<String, StreamingListener>();
+
+    private final SalesforceConfiguration configuration;
+
+    private final String channel;
+
+    private final String type;
+
+    private String key;
+
+    private final BlockingQueue<Event> journal;
+
+    private final Map<String, String> cookies = new HashMap<String, String>();
+
+    private final RetryPolicy retryPolicy;
+
+    private SalesforceConnection connection;
+
+    private String clientId;
+
+    /** The replay id of the last event appended to the journal. */
+    private volatile long lastReceived;
+
+    private volatile boolean stopped;
+
+    /** Set when events were dropped because the journal was full. */
+    private boolean overflowed;
+
+    private Thread thread;
+
+    private int references;
+
+    private StreamingListener(SalesforceConfiguration configuration,
+            String type, long replayFrom) {
+        this.configuration = configuration;
+        this.channel = configuration.getStreamingChannel();
+        this.type = type;
+        this.journal = new ArrayBlockingQueue<Event>(
+                configuration.getStreamingJournalSize());
+        this.retryPolicy = new RetryPolicy(configuration);
+        Long persisted = readReplayId();
+        this.lastReceived = persisted != null ? persisted : replayFrom;
+    }
+
+    /**
+     * Returns the listener of the org user, credentials and streaming
+     * settings of the configuration for the sObject type, starting it if
+     * needed. Each call must be paired
+     * with {@link #release(StreamingListener)}.
+     *
+     * @param type
+     *            the sObject type whose events are journaled
+     * @param replayFrom
+     *            where a new listener starts when no replay id has been
+     *            persisted
+     * @throws UnsupportedOperationException
+     *             if the channel carries the events of another sObject type
+     */
+    static synchronized StreamingListener acquire(
+            SalesforceConfiguration configuration, String type,
+            long replayFrom) {
+        String entity = getChannelEntity(configuration.getStreamingChannel());
+        if (entity != null && !entity.equals(type)) {
+            throw new UnsupportedOperationException("Streaming channel "
+                    + configuration.getStreamingChannel() + " carries "
+                    + entity + " events, not " + type);
+        }
+        String replayFile = configuration.getStreamingReplayFile();
+        String key = configuration.getCredentialsKey() + "|"
+                + configuration.getServicePath() + "|"
+                + configuration.getStreamingEndpoint() + "|"
+                + configuration.getStreamingChannel() + "|"
+                + configuration.getStreamingJournalSize() + "|"
+                + (StringUtil.isBlank(replayFile) ? "" : new File(replayFile)
+                        .getAbsolutePath()) + "|" + type;
+        StreamingListener listener = instances.get(key);
+        if (listener == null || listener.stopped) {
+            listener = new StreamingListener(configuration, type, replayFrom);
+            listener.key = key;
+            listener.thread = new Thread(listener, "salesforce-streaming "
+                    + listener.channel + " " + type);
+            listener.thread.setDaemon(true);
+            listener.thread.start();
+            instances.put(key, listener);
+        }
+        listener.references++;
+        return listener;
+    }
+
+    /**
+     * Releases a listener returned by
+     * {@link #acquire(SalesforceConfiguration, String, long)} and stops it
+     * once no connector uses it.
+     */
+    static synchronized void release(StreamingListener listener) {
+        if (--listener.references == 0) {
+            if (instances.get(listener.key) == listener) {
+                instances.remove(listener.key);
+            }
+            listener.stop();
+        }
+    }
+
+    /**
+     * @return the sObject type of a single entity Change Data Capture
+     *         channel, e.g. User for <code>/data/UserChangeEvent</code>, or
+     *         null if the channel may carry several types
+     */
+    static String getChannelEntity(String channel) {
+        String prefix = "/data/";
+        String suffix = "ChangeEvent";
+        if (channel == null || !channel.startsWith(prefix)
+                || !channel.endsWith(suffix)
+                || channel.length() == prefix.length() + suffix.length()) {
+            return null;
+        }
+        String entity = channel.substring(prefix.length(), channel.length()
+                - suffix.length());
+        // Account__ChangeEvent is the channel of Account__c
+        return entity.endsWith("__") ? entity + "c" : entity;
+    }
+
+    public void run() {
+        try {
+            listen();
+        } finally {
+            if (connection != null) {
+                connection.dispose();
+                connection.release();
+                connection = null;
+            }
+        }
+        log.info("Streaming on {0} stopped", channel);
+    }
+
+    private void listen() {
+        int failures = 0;
+        while (!stopped) {
+            try {
+                if (connection == null) {
+                    connection = new SalesforceConnection(configuration);
+                }
+                if (overflowed) {
+                    awaitDrain();
+                }
+                if (clientId == null) {
+                    handshake();
+                    subscribe();
+                }
+                long interval = connect();
+                failures = 0;
+                if (interval > 0) {
+                    Thread.sleep(interval);
+                }
+            } catch (InterruptedException e) {
+                stopped = true;
+            } catch (RuntimeException e) {
+                clientId = null;
+                long delay = retryPolicy.getDelay(++failures, null);
+                log.warn(e, "Streaming on {0} failed, reconnecting in {1} ms",
+                        channel, delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    stopped = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the sync has drained half of the journal; the dropped
+     * events are then replayed by a new subscription.
+     */
+    private void awaitDrain() throws InterruptedException {
+        int capacity = configuration.getStreamingJournalSize();
+        while (!stopped && journal.remainingCapacity() < (capacity + 1) / 2) {
+            Thread.sleep(JOURNAL_WAIT);
+        }
+        overflowed = false;
+        clientId = null;
+        log.info("Streaming journal of {0} drained, resubscribing", type);
+    }
+
+    /**
+     * Stops the listener after the current long poll.
+     */
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            // Wakes the listener up when it waits for the journal or a retry
+            thread.interrupt();
+        }
+    }
+
+    private void handshake() {
+        cookies.clear();
+        Map<String, Object> message = new LinkedHashMap<String, Object>();
+        message.put("channel", "/meta/handshake");
+        message.put("version", "1.0");
+        message.put("supportedConnectionTypes", Collections
+                .singletonList("long-polling"));
+        message.put("ext", Collections.singletonMap("replay", true));
+
+        Map reply = getReply(send(message), "/meta/handshake");
+        clientId = (String) reply.get("clientId");
+        log.info("Streaming handshake done, clientId: {0}", clientId);
+    }
+
+    private void subscribe() {
+        Map<String, Object> message = new LinkedHashMap<String, Object>();
+        message.put("channel", "/meta/subscribe");
+        message.put("clientId", clientId);
+        message.put("subscription", channel);
+        message.put("ext", Collections.singletonMap("replay", Collections
+                .singletonMap(channel, lastReceived)));
+
+        getReply(send(message), "/meta/subscribe");
+        log.info("Subscribed to {0} from replay id {1}", channel, lastReceived);
+    }
+
+    /**
+     * Long-polls for events and journals them.
+     *
+     * @return the interval advised by the server before the next connect
+     */
+    private long connect() throws InterruptedException {
+        Map<String, Object> message = new LinkedHashMap<String, Object>();
+        message.put("channel", "/meta/connect");
+        message.put("clientId", clientId);
+        message.put("connectionType", "long-polling");
+
+        long interval = 0;
+        for (Map reply : send(message)) {
+            if ("/meta/connect".equals(reply.get("channel"))) {
+                Map advice = (Map) reply.get("advice");
+                if (advice != null && advice.get("interval") instanceof Number) {
+                    interval = ((Number) advice.get("interval")).longValue();
+                }
+                if (!Boolean.TRUE.equals(reply.get("successful"))) {
+                    log.info("Streaming connect failed: {0}, advice: {1}",
+                            reply.get("error"), advice);
+                    if (advice != null && "none".equals(advice.get("reconnect"))) {
+                        throw new ConnectorException("Streaming on " + channel
+                                + " refused: " + reply.get("error"));
+                    }
+                    // 403::Unknown client or reconnect=handshake
+                    clientId = null;
+                }
+            } else if (channel.equals(reply.get("channel")) && !overflowed) {
+                Event event = Event.parse(reply);
+                if (event != null) {
+                    if ((event.getEntityName() == null || type.equals(event
+                            .getEntityName()))
+                            && !journal.offer(event, JOURNAL_WAIT,
+                                    TimeUnit.MILLISECONDS)) {
+                        // Replayed after the journal is drained
+                        log.warn("Streaming journal of {0} is full, dropping"
+                                + " the events after replay id {1}", type,
+                                lastReceived);
+                        overflowed = true;
+                        continue;
+                    }
+                    lastReceived = event.getReplayId();
+                }
+            }
+        }
+        return interval;
+    }
+
+    private List<Map> send(Map<String, Object> message) {
+        List<Map> replies = null;
+        ClientResource child = connection.getResource(getEndpoint());
+        for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+            child.getRequest().getCookies().add(
+                    new Cookie(cookie.getKey(), cookie.getValue()));
+        }
+
+        Representation body = null;
+        try {
+            body = child.post(new JacksonRepresentation<List<Map<String, Object>>>(
+                    Collections.singletonList(message)));
+            for (CookieSetting cookie : child.getResponse().getCookieSettings()) {
+                cookies.put(cookie.getName(), cookie.getValue());
+            }
+            replies = new JacksonRepresentation<List>(body, List.class)
+                    .getObject();
+        } catch (ResourceException e) {
+            if (e.getStatus().getCode() == 401) {
+                connection.refreshOAuthToken(child);
+            }
+            throw e;
+        } finally {
+            if (body != null) {
+                body.release();
+            }
+        }
+        return replies != null ? replies : Collections.<Map> emptyList();
+    }
+
+    private Map getReply(List<Map> replies, String metaChannel) {
+        for (Map reply : replies) {
+            if (metaChannel.equals(reply.get("channel"))) {
+                if (!Boolean.TRUE.equals(reply.get("successful"))) {
+                    throw new ConnectorException(metaChannel + " failed: "
+                            + reply.get("error"));
+                }
+                return reply;
+            }
+        }
+        throw new ConnectorException("No reply to " + metaChannel);
+    }
+
+    private String getEndpoint() {
+        String endpoint = configuration.getStreamingEndpoint();
+        if (StringUtil.isNotBlank(endpoint)) {
+            return endpoint;
+        }
+        String servicePath = configuration.getServicePath();
+        return "/cometd/"
+                + servicePath.substring(servicePath.lastIndexOf("/v") + 2);
+    }
+
+    // ------------------------------------------------------------------
+    // Journal
+    // ------------------------------------------------------------------
+
+    /**
+     * @return up to max events from the head of the journal, which stay
+     *         there until they are acknowledged
+     */
+    public List<Event> peek(int max) {
+        List<Event> events = new ArrayList<Event>();
+        Iterator<Event> iterator = journal.iterator();
+        while (iterator.hasNext() && events.size() < max) {
+            events.add(iterator.next());
+        }
+        return events;
+    }
+
+    /**
+     * Removes the event from the journal once it has been delivered and
+     * persists its replay id.
+     */
+    public void acknowledge(Event event) {
+        journal.remove(event);
+        writeReplayId(event.getReplayId());
+    }
+
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    private File getReplayFile() {
+        String path = configuration.getStreamingReplayFile();
+        if (StringUtil.isBlank(path)) {
+            return null;
+        }
+        // Each sObject type has its own cursor
+        return new File("User".equals(type) ? path : path + "." + type);
+    }
+
+    /**
+     * @return the persisted replay id, null if none has been persisted yet
+     *         or {@link #REPLAY_ALL} if the file can not be read, so no event
+     *         is missed
+     */
+    private Long readReplayId() {
+        File file = getReplayFile();
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return Long.parseLong(new String(IOUtil.readInputStreamBytes(in,
+                    true), "UTF-8").trim());
+        } catch (Exception e) {
+            log.warn(e, "Ignoring the replay id in {0}, replaying all events",
+                    file);
+            return REPLAY_ALL;
+        } finally {
+            IOUtil.quietClose(in);
+        }
+    }
+
+    private void writeReplayId(long replayId) {
+        File file = getReplayFile();
+        if (file == null) {
+            return;
+        }
+        // Written aside and renamed, so a crash never leaves a truncated id
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temporary);
+            out.write(String.valueOf(replayId).getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (!temporary.renameTo(file)
+                    && (!file.delete() || !temporary.renameTo(file))) {
+                throw new IOException("Can not rename " + temporary);
+            }
+        } catch (IOException e) {
+            log.warn(e, "Failed to persist the replay id in {0}", file);
+        } finally {
+            IOUtil.quietClose(out);
+        }
+    }
+
+    /**
+     * A change event: Change Data Capture or PushTopic.
+     */
+    static class Event {
+        private final long replayId;
+        private final String entityName;
+        private final String changeType;
+        private final List<String> recordIds;
+
+        Event(long replayId, String entityName, String changeType,
+                List<String> recordIds) {
+            this.replayId = replayId;
+            this.entityName = entityName;
+            this.changeType = changeType;
+            this.recordIds = recordIds;
+        }
+
+        /**
+         * @return the event, or null if the message is not a change event
+         */
+        static Event parse(Map message) {
+            Map data = (Map) message.get("data");
+            Map event = data != null ? (Map) data.get("event") : null;
+            if (event == null || !(event.get("replayId") instanceof Number)) {
+                return null;
+            }
+            long replayId = ((Number) event.get("replayId")).longValue();
+
+            Map payload = (Map) data.get("payload");
+            if (payload != null && payload.get("ChangeEventHeader") instanceof Map) {
+                // Change Data Capture
+                Map header = (Map) payload.get("ChangeEventHeader");
+                List<String> recordIds = header.get("recordIds") instanceof List ? (List<String>) header
+                        .get("recordIds")
+                        : Collections.<String> emptyList();
+                return new Event(replayId, (String) header.get("entityName"),
+                        String.valueOf(header.get("changeType")), recordIds);
+            }
+
+            Map sobject = (Map) data.get("sobject");
+            if (sobject != null && sobject.get("Id") != null) {
+                // PushTopic: created, updated, deleted, undeleted
+                return new Event(replayId, null, String.valueOf(
+                        event.get("type")).toUpperCase(), Collections
+                        .singletonList((String) sobject.get("Id")));
+            }
+            return null;
+        }
+
+        public long getReplayId() {
+            return replayId;
+        }
+
+        /**
+         * @return the sObject type, null for PushTopic events
+         */
+        public String getEntityName() {
+            return entityName;
+        }
+
+        /**
+         * @return CREATE, UPDATE, DELETE, UNDELETE or GAP_*
+         */
+        public String getChangeType() {
+            return changeType;
+        }
+
+        public boolean isDelete() {
+            return changeType.startsWith("DELETE")
+                    || "GAP_DELETE".equals(changeType);
+        }
+
+        public List<String> getRecordIds() {
+            return recordIds;
+        }
+    }
+}
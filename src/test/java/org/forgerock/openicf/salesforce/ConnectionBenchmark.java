@@ -0,0 +1,150 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.common.StringUtil;
+import org.restlet.Client;
+import org.restlet.Context;
+import org.restlet.data.Parameter;
+import org.restlet.data.Protocol;
+import org.restlet.engine.Engine;
+import org.restlet.resource.ClientResource;
+import org.restlet.util.Series;
+
+/**
+ * Measures the cost of creating and disposing a connection, as a connector
+ * pool does, with the shared {@link SalesforceTransport} and the way
+ * connections were created before: a context and a client of their own,
+ * and an authenticator registered with the engine by each connection.
+ * <p>
+ * No request is sent. Run it with the test classpath:
+ * </p>
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; \
+ *     org.forgerock.openicf.salesforce.ConnectionBenchmark [iterations]
+ * </pre>
+ */
+public class ConnectionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        SalesforceConfiguration configuration = new SalesforceConfiguration();
+        configuration.setLoginUrl("https://login.salesforce.com/services/oauth2/token");
+        configuration.setClientId("benchmark");
+        configuration.setUsername("benchmark@example.com");
+
+        // Warm up the engine and the JIT
+        run(configuration, iterations / 10, true);
+        run(configuration, iterations / 10, false);
+
+        int authenticators = getAuthenticators();
+        long own = run(configuration, iterations, false);
+        int ownAuthenticators = getAuthenticators() - authenticators;
+        long shared = run(configuration, iterations, true);
+        int sharedAuthenticators = getAuthenticators() - authenticators
+                - ownAuthenticators;
+
+        System.out.println("Connections created: " + iterations);
+        System.out.println("Own client per connection: " + own / iterations
+                + " ns per connection, " + ownAuthenticators
+                + " authenticators registered");
+        System.out.println("Shared transport:          " + shared
+                / iterations + " ns per connection, " + sharedAuthenticators
+                + " authenticators registered");
+    }
+
+    private static int getAuthenticators() {
+        return Engine.getInstance().getRegisteredAuthenticators().size();
+    }
+
+    /**
+     * @return the nanoseconds spent creating and disposing the connections
+     */
+    private static long run(SalesforceConfiguration configuration,
+            int iterations, boolean shared) throws Exception {
+        // The connection a pool keeps open while others come and go
+        SalesforceConnection pooled = new SalesforceConnection(configuration);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (shared) {
+                    new SalesforceConnection(configuration).dispose();
+                } else {
+                    connectAlone(configuration);
+                }
+            }
+            return System.nanoTime() - start;
+        } finally {
+            pooled.dispose();
+        }
+    }
+
+    /**
+     * Creates and disposes a connection the way SalesforceConnection did
+     * before the transport was shared.
+     */
+    private static void connectAlone(SalesforceConfiguration configuration)
+            throws Exception {
+        ClientResource resource = new ClientResource(new Context(),
+                configuration.getLoginUrl());
+        OAuthTokenStore tokens = OAuthTokenStore.acquire(configuration);
+
+        List<Protocol> protocols = new ArrayList<Protocol>();
+        protocols.add(Protocol.HTTPS);
+        protocols.add(Protocol.HTTP);
+        Series<Parameter> parameters = resource.getContext().getParameters();
+        parameters.add("maxConnectionsPerHost", String.valueOf(configuration
+                .getMaxConnectionsPerHost()));
+        parameters.add("maxTotalConnections", String.valueOf(configuration
+                .getMaxTotalConnections()));
+        parameters.add("socketTimeout", String.valueOf(configuration
+                .getReadTimeout()));
+        parameters.add("idleTimeout", String.valueOf(configuration
+                .getIdleTimeout()));
+        parameters.add("idleCheckInterval", String.valueOf(configuration
+                .getIdleCheckInterval()));
+        parameters.add("tcpNoDelay", "true");
+        String trustStore = configuration.getTrustStore();
+        if (StringUtil.isNotEmpty(trustStore)) {
+            parameters.add("truststorePath", trustStore);
+        }
+
+        Client client = new Client(resource.getContext(), protocols,
+                SalesforceConnection.HTTP_CLIENT_HELPER);
+        client.setConnectTimeout(configuration.getConnectTimeout());
+        resource.setNext(client);
+        Engine.getInstance().getRegisteredAuthenticators().add(
+                new SalesforceConnection.OAuthHelper());
+
+        // dispose()
+        client.stop();
+        OAuthTokenStore.release(tokens);
+    }
+}
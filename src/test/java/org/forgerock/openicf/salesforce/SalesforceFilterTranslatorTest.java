@@ -0,0 +1,185 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Types;
+import java.util.List;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.junit.Test;
+
+/**
+ * Tests the WHERE clauses of {@link SalesforceFilterTranslator}, in
+ * particular the collapse of disjunctions into IN clauses.
+ */
+public class SalesforceFilterTranslatorTest {
+
+    /**
+     * Maps attributes to themselves, all of them text but IsActive,
+     * NumberOfFailedLogins and LastLoginDate.
+     */
+    private final SalesforceConnector connector = new SalesforceConnector() {
+        public String getColumnName(String attributeName) {
+            return Uid.NAME.equals(attributeName) ? "Id" : attributeName;
+        }
+
+        public Integer getColumnType(String columnName) {
+            if ("IsActive".equals(columnName)) {
+                return Types.BOOLEAN;
+            }
+            if ("NumberOfFailedLogins".equals(columnName)) {
+                return Types.INTEGER;
+            }
+            return "LastLoginDate".equals(columnName) ? Types.TIMESTAMP
+                    : Types.VARCHAR;
+        }
+    };
+
+    @Test
+    public void testEqualsDisjunctionIsCollapsed() {
+        assertEquals("Email IN ('a@example.com','b@example.com','c@example.com')",
+                where(FilterBuilder.or(FilterBuilder.or(equal("Email",
+                        "a@example.com"), equal("Email", "b@example.com")),
+                        equal("Email", "c@example.com"))));
+    }
+
+    @Test
+    public void testDuplicateValuesAreCollapsed() {
+        assertEquals("Email = 'a@example.com'", where(FilterBuilder.or(equal(
+                "Email", "a@example.com"), equal("Email", "a@example.com"))));
+    }
+
+    @Test
+    public void testNegatedDisjunctionIsNotCollapsed() {
+        assertEquals("NOT Email = 'a@example.com' OR NOT Email = 'b@example.com'",
+                where(FilterBuilder.or(FilterBuilder.not(equal("Email",
+                        "a@example.com")), FilterBuilder.not(equal("Email",
+                        "b@example.com")))));
+    }
+
+    @Test
+    public void testMixedFieldDisjunctionIsNotCollapsed() {
+        assertEquals("Email = 'a@example.com' OR Alias = 'a'", where(FilterBuilder
+                .or(equal("Email", "a@example.com"), equal("Alias", "a"))));
+    }
+
+    @Test
+    public void testNullDisjunctionIsNotCollapsed() {
+        assertEquals("Email IS NULL OR Email = 'a@example.com'",
+                where(FilterBuilder.or(FilterBuilder.equalTo(AttributeBuilder
+                        .build("Email")), equal("Email", "a@example.com"))));
+    }
+
+    @Test
+    public void testSubsetSplitsInClause() {
+        FilterWhereBuilder in = translate(FilterBuilder.or(equal("Email",
+                "a@example.com"), equal("Email", "b@example.com")));
+        assertEquals("Email", in.getInField());
+        assertEquals("Email = 'b@example.com'", in.subset(
+                in.getInValues().subList(1, 2)).getWhereClause());
+    }
+
+    @Test
+    public void testBooleanIsNormalized() {
+        assertEquals("IsActive = true", where(equal("IsActive", "TRUE")));
+        assertEquals("IsActive = false", where(FilterBuilder
+                .equalTo(AttributeBuilder.build("IsActive", Boolean.FALSE))));
+    }
+
+    @Test
+    public void testInvalidBooleanIsRejected() {
+        try {
+            where(equal("IsActive", "yes"));
+            fail("yes is not a boolean");
+        } catch (InvalidAttributeValueException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInvalidNumberAndDateAreRejected() {
+        assertEquals("NumberOfFailedLogins = 3", where(equal(
+                "NumberOfFailedLogins", " 3 ")));
+        try {
+            where(equal("NumberOfFailedLogins", "3 OR Id != null"));
+            fail("3 OR Id != null is not a number");
+        } catch (InvalidAttributeValueException e) {
+            assertTrue(e.getMessage().contains("NumberOfFailedLogins"));
+        }
+        try {
+            where(equal("LastLoginDate", "2012-01-01 OR Id != null"));
+            fail("2012-01-01 OR Id != null is not a datetime");
+        } catch (InvalidAttributeValueException e) {
+            assertTrue(e.getMessage().contains("LastLoginDate"));
+        }
+    }
+
+    @Test
+    public void testFailedDescribeIsNotRetried() {
+        final int[] describes = new int[1];
+        SalesforceConnector offline = new SalesforceConnector() {
+            public String getColumnName(String attributeName) {
+                return attributeName;
+            }
+
+            public Integer getColumnType(String columnName) {
+                describes[0]++;
+                throw new ConnectorException("describe failed");
+            }
+        };
+        List<FilterWhereBuilder> queries = new SalesforceFilterTranslator(
+                ObjectClass.ACCOUNT, null, offline).translate(FilterBuilder
+                .and(equal("Email", "a@example.com"), equal("Alias", "a")));
+        assertEquals("Email = 'a@example.com' AND Alias = 'a'", queries.get(0)
+                .getWhereClause());
+        assertEquals(1, describes[0]);
+    }
+
+    private Filter equal(String name, String value) {
+        return FilterBuilder.equalTo(AttributeBuilder.build(name, value));
+    }
+
+    private FilterWhereBuilder translate(Filter filter) {
+        List<FilterWhereBuilder> queries = new SalesforceFilterTranslator(
+                ObjectClass.ACCOUNT, null, connector).translate(filter);
+        assertEquals(1, queries.size());
+        return queries.get(0);
+    }
+
+    private String where(Filter filter) {
+        return translate(filter).getWhereClause();
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright © 2012 ForgeRock AS. All rights reserved.
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * $Id$
+ */
+package org.forgerock.openicf.salesforce;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.identityconnectors.common.IOUtil;
+import org.identityconnectors.common.security.GuardedString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the {@link StreamingListener} against a stub CometD server: the
+ * handshake, the subscription from the persisted replay id, the long polls
+ * and the journal of the events of one sObject type.
+ */
+public class StreamingListenerTest {
+
+    private static final String CHANNEL = "/data/ChangeEvents";
+
+    private static final long TIMEOUT = 10000;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /** The Bayeux messages received by the stub, in order. */
+    private final List<Map> received = Collections
+            .synchronizedList(new ArrayList<Map>());
+
+    /** The event batches returned by the next long polls. */
+    private final BlockingQueue<List<Map>> pending = new LinkedBlockingQueue<List<Map>>();
+
+    private HttpServer server;
+
+    private File directory;
+
+    private SalesforceConfiguration configuration;
+
+    private StreamingListener listener;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        final String instanceUrl = "http://localhost:"
+                + server.getAddress().getPort();
+        server.createContext("/services/oauth2/token", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                IOUtil.readInputStreamBytes(exchange.getRequestBody(), true);
+                Map<String, Object> token = new HashMap<String, Object>();
+                token.put("id", instanceUrl + "/id/00D/005");
+                token.put("instance_url", instanceUrl);
+                token.put("access_token", "00D!token");
+                token.put("issued_at", String.valueOf(System
+                        .currentTimeMillis()));
+                reply(exchange, token);
+            }
+        });
+        server.createContext("/cometd/27.0", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                List<Map> messages = mapper.readValue(exchange
+                        .getRequestBody(), List.class);
+                List<Map> replies = new ArrayList<Map>();
+                for (Map message : messages) {
+                    received.add(message);
+                    replies.addAll(answer(message));
+                }
+                reply(exchange, replies);
+            }
+        });
+        server.start();
+
+        directory = File.createTempFile("streaming", "");
+        directory.delete();
+        directory.mkdirs();
+
+        configuration = new SalesforceConfiguration();
+        configuration.setLoginUrl(instanceUrl + "/services/oauth2/token");
+        configuration.setClientId("client");
+        configuration.setClientSecret(new GuardedString("secret"
+                .toCharArray()));
+        // A user of its own, so no token is shared with another test
+        configuration.setUsername("streaming" + System.nanoTime()
+                + "@example.com");
+        configuration.setPassword(new GuardedString("password".toCharArray()));
+        configuration.setStreamingChannel(CHANNEL);
+        configuration.setStreamingReplayFile(new File(directory, "replay")
+                .getPath());
+    }
+
+    @After
+    public void tearDown() {
+        if (listener != null) {
+            StreamingListener.release(listener);
+        }
+        server.stop(0);
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testSubscribesFromThePersistedReplayId() throws Exception {
+        write("replay", "7");
+        listener = StreamingListener.acquire(configuration, "User",
+                StreamingListener.REPLAY_NEW);
+
+        Map subscribe = waitForMessage("/meta/subscribe");
+        assertEquals("/meta/handshake", received.get(0).get("channel"));
+        assertEquals("client-1", subscribe.get("clientId"));
+        assertEquals(CHANNEL, subscribe.get("subscription"));
+        assertEquals(7, getReplayFrom(subscribe));
+        waitForMessage("/meta/connect");
+    }
+
+    @Test
+    public void testJournalsTheEventsOfItsType() throws Exception {
+        pending.add(Arrays.asList(event(8, "User", "UPDATE", "005A"), event(
+                9, "Group", "CREATE", "00GA"), event(10, "User", "DELETE",
+                "005B")));
+        listener = StreamingListener.acquire(configuration, "User",
+                StreamingListener.REPLAY_NEW);
+
+        List<StreamingListener.Event> events = waitForEvents(2);
+        assertEquals(8, events.get(0).getReplayId());
+        assertEquals(Collections.singletonList("005A"), events.get(0)
+                .getRecordIds());
+        assertFalse(events.get(0).isDelete());
+        assertEquals(10, events.get(1).getReplayId());
+        assertTrue(events.get(1).isDelete());
+        assertEquals(10, listener.getLastReceived());
+
+        listener.acknowledge(events.get(0));
+        assertEquals("8", read("replay"));
+        assertFalse(new File(directory, "replay.tmp").exists());
+        assertEquals(1, listener.peek(10).size());
+    }
+
+    @Test
+    public void testEachTypeHasItsOwnCursor() throws Exception {
+        write("replay", "7");
+        write("replay.Group", "3");
+        pending.add(Arrays.asList(event(9, "Group", "CREATE", "00GA")));
+        listener = StreamingListener.acquire(configuration, "Group",
+                StreamingListener.REPLAY_NEW);
+
+        assertEquals(3, getReplayFrom(waitForMessage("/meta/subscribe")));
+        List<StreamingListener.Event> events = waitForEvents(1);
+        listener.acknowledge(events.get(0));
+        assertEquals("9", read("replay.Group"));
+        assertEquals("7", read("replay"));
+    }
+
+    @Test
+    public void testUnreadableReplayFileReplaysAllEvents() throws Exception {
+        write("replay", "");
+        listener = StreamingListener.acquire(configuration, "User", 42);
+
+        assertEquals(StreamingListener.REPLAY_ALL,
+                getReplayFrom(waitForMessage("/meta/subscribe")));
+    }
+
+    @Test
+    public void testStartsFromTheTokenWithoutReplayFile() throws Exception {
+        listener = StreamingListener.acquire(configuration, "User", 42);
+
+        assertEquals(42, getReplayFrom(waitForMessage("/meta/subscribe")));
+    }
+
+    @Test
+    public void testReleaseStopsTheListener() throws Exception {
+        StreamingListener first = StreamingListener.acquire(configuration,
+                "User", StreamingListener.REPLAY_NEW);
+        assertSame(first, StreamingListener.acquire(configuration, "User",
+                StreamingListener.REPLAY_NEW));
+        StreamingListener.release(first);
+        StreamingListener.release(first);
+
+        listener = StreamingListener.acquire(configuration, "User",
+                StreamingListener.REPLAY_NEW);
+        assertNotSame(first, listener);
+    }
+
+    @Test
+    public void testFullJournalResubscribesOnceDrained() throws Exception {
+        configuration.setStreamingJournalSize(1);
+        pending.add(Arrays.asList(event(8, "User", "UPDATE", "005A"), event(
+                9, "User", "UPDATE", "005B")));
+        listener = StreamingListener.acquire(configuration, "User",
+                StreamingListener.REPLAY_NEW);
+
+        List<StreamingListener.Event> events = waitForEvents(1);
+        assertEquals(8, events.get(0).getReplayId());
+        listener.acknowledge(events.get(0));
+
+        // Event 9 was dropped, the new subscription replays it
+        assertEquals(8, getReplayFrom(waitForMessage("/meta/subscribe", 2)));
+        assertEquals(8, listener.getLastReceived());
+    }
+
+    @Test
+    public void testSingleEntityChannelRejectsOtherTypes() {
+        assertEquals("User", StreamingListener
+                .getChannelEntity("/data/UserChangeEvent"));
+        assertEquals("Invoice__c", StreamingListener
+                .getChannelEntity("/data/Invoice__ChangeEvent"));
+        assertNull(StreamingListener.getChannelEntity(CHANNEL));
+        assertNull(StreamingListener.getChannelEntity("/topic/AllUsers"));
+
+        configuration.setStreamingChannel("/data/UserChangeEvent");
+        try {
+            StreamingListener.acquire(configuration, "Group",
+                    StreamingListener.REPLAY_NEW);
+            fail("Group events are not carried by /data/UserChangeEvent");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Answers a Bayeux message the way the Salesforce CometD server does.
+     */
+    private List<Map> answer(Map message) {
+        String channel = (String) message.get("channel");
+        Map<String, Object> reply = new LinkedHashMap<String, Object>();
+        reply.put("channel", channel);
+        reply.put("successful", Boolean.TRUE);
+        if ("/meta/handshake".equals(channel)) {
+            reply.put("clientId", "client-1");
+            reply.put("version", "1.0");
+        } else if ("/meta/subscribe".equals(channel)) {
+            reply.put("subscription", message.get("subscription"));
+        } else if ("/meta/connect".equals(channel)) {
+            reply.put("advice", Collections.singletonMap("interval", 0));
+            List<Map> replies = new ArrayList<Map>();
+            try {
+                // The long poll
+                List<Map> events = pending.poll(200, TimeUnit.MILLISECONDS);
+                if (events != null) {
+                    replies.addAll(events);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            replies.add(reply);
+            return replies;
+        }
+        return Collections.<Map> singletonList(reply);
+    }
+
+    private Map event(long replayId, String entityName, String changeType,
+            String recordId) {
+        Map<String, Object> header = new HashMap<String, Object>();
+        header.put("entityName", entityName);
+        header.put("changeType", changeType);
+        header.put("recordIds", Collections.singletonList(recordId));
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("event", Collections.singletonMap("replayId", replayId));
+        data.put("payload", Collections.singletonMap("ChangeEventHeader",
+                header));
+        Map<String, Object> message = new HashMap<String, Object>();
+        message.put("channel", CHANNEL);
+        message.put("data", data);
+        return message;
+    }
+
+    private void reply(HttpExchange exchange, Object body) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        mapper.writeValue(buffer, body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, buffer.size());
+        OutputStream out = exchange.getResponseBody();
+        try {
+            buffer.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private Map waitForMessage(String channel) throws InterruptedException {
+        return waitForMessage(channel, 1);
+    }
+
+    /**
+     * @return the nth message received on the channel
+     */
+    private Map waitForMessage(String channel, int nth)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (received) {
+                int count = 0;
+                for (Map message : received) {
+                    if (channel.equals(message.get("channel"))
+                            && ++count == nth) {
+                        return message;
+                    }
+                }
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("No " + channel + " message received");
+    }
+
+    private List<StreamingListener.Event> waitForEvents(int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        List<StreamingListener.Event> events;
+        while ((events = listener.peek(count + 1)).size() < count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        // No event of another type shows up later
+        Thread.sleep(300);
+        events = listener.peek(count + 1);
+        assertEquals(count, events.size());
+        return events;
+    }
+
+    private long getReplayFrom(Map subscribe) {
+        Map ext = (Map) subscribe.get("ext");
+        Map replay = (Map) ext.get("replay");
+        return ((Number) replay.get(CHANNEL)).longValue();
+    }
+
+    private void write(String name, String content) throws IOException {
+        OutputStream out = new FileOutputStream(new File(directory, name));
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private String read(String name) throws IOException {
+        InputStream in = new FileInputStream(new File(directory, name));
+        return new String(IOUtil.readInputStreamBytes(in, true), "UTF-8");
+    }
+}